@@ -3,23 +3,42 @@ package io.github.bmd007.ai.agent.kale_kaj_driver;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.tool.annotation.Tool;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.web.reactive.function.client.ExchangeStrategies;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
-import java.util.Base64;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeoutException;
 
 @Slf4j
 @Service
 public class RpiService {
 
+    private static final Duration CAPTURE_TIMEOUT = Duration.ofSeconds(2);
+    // the robot answers an awaited move once its motors stopped
+    private static final Duration MOVE_TIMEOUT = Duration.ofSeconds(2);
+
     private final WebClient client;
+    // the agent may ask for the image several times in one step, a capture is shared within this window
+    private final Duration captureFreshness;
+    private Mono<byte[]> captureInFlight;
+    private byte[] captured;
+    private Instant capturedAt = Instant.MIN;
 
-    public RpiService(WebClient.Builder webClientBuilder) {
+    public RpiService(WebClient.Builder webClientBuilder,
+                      @Value("${kale-kaj.robot.base-url}") String robotBaseUrl,
+                      @Value("${kale-kaj.robot.capture-freshness:200ms}") Duration captureFreshness) {
+        this.captureFreshness = captureFreshness;
         this.client = webClientBuilder
-            .baseUrl("http://192.168.1.165:8080")
+            .baseUrl(robotBaseUrl)
             .exchangeStrategies(ExchangeStrategies.builder()
                 .codecs(codecs -> codecs.defaultCodecs()
                     .maxInMemorySize(1024 * 1024 * 100) // 10 MB
@@ -29,24 +48,78 @@ public class RpiService {
             .build();
     }
 
-    @Tool(description = "Move the robot in the specified direction")
-    public void moveTheRobot(MOVE_DIRECTION direction) {
-        client.post()
-            .uri("/move?command=" + direction.name())
-            .retrieve()
-            .bodyToMono(Void.class)
-            .subscribe();
+    /**
+     * Waits for the robot to finish the move, so the agent looks again only once the car stands still,
+     * and learns when the move was not made.
+     * Retried only when the command never reached the robot, a move that timed out may well have been made.
+     */
+    @Tool(description = "Move the robot in the specified direction, tells whether the robot took the move")
+    public String moveTheRobot(MOVE_DIRECTION direction) {
+        try {
+            client.post()
+                .uri("/move?command=" + direction.name() + "&await=true")
+                .retrieve()
+                .toBodilessEntity()
+                .timeout(MOVE_TIMEOUT)
+                .retryWhen(backoff().filter(e -> e instanceof WebClientRequestException && e.getCause() instanceof ConnectException))
+                .block();
+            return "The robot moved " + direction;
+        } catch (RuntimeException e) {
+            log.warn("Robot did not take the move {}: {}", direction, e.toString());
+            return "The robot did not take the move " + direction + ": " + e.getMessage();
+        }
     }
 
+    /**
+     * A failed capture reaches the agent as a tool error, not as an empty picture it would try to describe.
+     */
     @Tool(description = "Get a picture from the robot front first person camera, a byte arrays representing JPEG image")
     public byte[] image() {
-        return client.get()
-            .uri("/v3/capture-image")
-            .retrieve()
-            .bodyToMono(byte[].class)
-            .retry(2)
-            .onErrorReturn(new byte[]{})
-            .block();
+        return capture().block();
+    }
+
+    // concurrent callers share one capture-image call and its retries
+    private synchronized Mono<byte[]> capture() {
+        if (captured != null && capturedAt.plus(captureFreshness).isAfter(Instant.now())) {
+            return Mono.just(captured);
+        }
+        if (captureInFlight == null) {
+            captureInFlight = client.get()
+                .uri("/v3/capture-image")
+                .retrieve()
+                .bodyToMono(byte[].class)
+                .filter(image -> image.length > 0)
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("The robot sent an empty image")))
+                .timeout(CAPTURE_TIMEOUT)
+                .retryWhen(backoff().filter(RpiService::isTransient))
+                .doOnNext(this::remember)
+                .doFinally(signal -> landed())
+                .cache();
+        }
+        return captureInFlight;
+    }
+
+    // exponential with jitter, so retries of a Wi-Fi drop do not all hit the robot at the same moment
+    private static Retry backoff() {
+        return Retry.backoff(2, Duration.ofMillis(100))
+            .maxBackoff(Duration.ofSeconds(1))
+            .jitter(0.5)
+            .onRetryExhaustedThrow((spec, signal) -> signal.failure());
+    }
+
+    private static boolean isTransient(Throwable e) {
+        return e instanceof TimeoutException
+            || e instanceof WebClientRequestException
+            || e instanceof WebClientResponseException response && response.getStatusCode().is5xxServerError();
+    }
+
+    private synchronized void remember(byte[] image) {
+        captured = image;
+        capturedAt = Instant.now();
+    }
+
+    private synchronized void landed() {
+        captureInFlight = null;
     }
 
     public enum MOVE_DIRECTION {
@@ -0,0 +1,103 @@
+package io.github.bmd007.ai.kale_kaj_driver.bench;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.bmd007.ai.kale_kaj_driver.KaleKajAiDriver;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * End to end benchmark of the agent loop: boots the driver against a {@link StubRobot} and two {@link RecordedChatModel}s,
+ * keeps {@code /agent} sessions busy and reports steps per second, step latency percentiles,
+ * allocation rate and how throughput scales with concurrent sessions.
+ * Run with {@code ./gradlew bench}, options as described in {@link BenchOptions}.
+ */
+public final class AgentLoopBenchmark {
+
+    private AgentLoopBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = BenchOptions.parse(args);
+        var answers = RecordedChatModel.answers(options.responses());
+        var local = new RecordedChatModel("llava", answers, options.localLatency(), options.chunkSpacing());
+        var cloud = new RecordedChatModel("gemini-2.5-pro", answers, options.cloudLatency(), options.chunkSpacing());
+
+        try (var robot = StubRobot.start(options.frames(), options.fps())) {
+            List<String> driverArgs = new ArrayList<>(options.driverArgs());
+            driverArgs.addFirst("--kale-kaj-driver.fleet.robots.default.base-url=" + robot.baseUrl());
+            // the bench profile turns the real chat models off, the recorded ones take their bean names
+            try (var driver = new SpringApplicationBuilder(KaleKajAiDriver.class)
+                .web(WebApplicationType.REACTIVE)
+                .profiles("bench")
+                .initializers(context -> {
+                    context.getBeanFactory().registerSingleton("ollamaChatModel", local);
+                    context.getBeanFactory().registerSingleton("vertexAiGeminiChatModel", cloud);
+                })
+                .run(driverArgs.toArray(String[]::new))) {
+
+                int port = driver.getEnvironment().getRequiredProperty("local.server.port", Integer.class);
+                var generator = new LoadGenerator(
+                    WebClient.create("http://localhost:" + port),
+                    driver.getBean(ObjectMapper.class),
+                    options.pipelined(),
+                    () -> local.calls() + cloud.calls(),
+                    robot::moves);
+
+                System.out.printf("Robot serving %d frames at %d fps, Ollama %s, Gemini %s, %s loop%n",
+                    robot.frameCount(), options.fps(), options.localLatency(), options.cloudLatency(),
+                    options.pipelined() ? "pipelined" : "sequential");
+                System.out.printf("Warming up for %ds%n", options.warmup().toSeconds());
+                generator.run(1, options.warmup());
+
+                List<RunResult> results = new ArrayList<>();
+                for (int sessions : options.sessions()) {
+                    System.out.printf("Measuring %d concurrent session(s) for %ds%n", sessions, options.duration().toSeconds());
+                    results.add(generator.run(sessions, options.duration()));
+                }
+                print(results);
+            }
+        }
+    }
+
+    private static void print(List<RunResult> results) {
+        System.out.println();
+        System.out.println("sessions   steps  steps/s  scaling   p50 ms   p95 ms   p99 ms   max ms  llm %  move %  calls  moves  alloc MB/s  alloc KB/step  gc  gc ms");
+        double baseline = results.getFirst().stepsPerSecond() / results.getFirst().sessions();
+        for (var result : results) {
+            // share of the summed step time spent waiting for the LLM and moving the car
+            double stepMillis = result.steps() == 0 ? Double.NaN : sum(result.stepNanos()) / 1e6;
+            System.out.println(String.format(Locale.ROOT,
+                "%8d %7d %8.2f %8.2f %8.0f %8.0f %8.0f %8.0f %6.1f %7.1f %6d %6d %11.1f %14.1f %3d %6d",
+                result.sessions(),
+                result.steps(),
+                result.stepsPerSecond(),
+                // relative to perfectly linear scaling from the first run
+                result.stepsPerSecond() / (baseline * result.sessions()),
+                result.stepMillis(0.50),
+                result.stepMillis(0.95),
+                result.stepMillis(0.99),
+                result.stepMillis(1.0),
+                100 * result.llmMillis() / stepMillis,
+                100 * result.actuationMillis() / stepMillis,
+                result.llmCalls(),
+                result.moves(),
+                result.allocationMegabytesPerSecond(),
+                result.allocatedKilobytesPerStep(),
+                result.gcCount(),
+                result.gcMillis()));
+        }
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.bmd007.ai.kale_kaj_driver.bench;
+
+import org.springframework.boot.convert.DurationStyle;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Benchmark settings, given as {@code --bench.*} arguments. Every other argument is handed to the driver,
+ * e.g. {@code --kale-kaj-driver.agent.await-motion=false --kale-kaj-driver.agent.move-spacing=1500ms} to measure with fixed delays.
+ *
+ * @param sessions      concurrent session counts to measure, one run each, to see how the loop scales
+ * @param warmup        single session run before measuring, lets the JIT and the connection pools settle
+ * @param duration      how long every measured run lasts
+ * @param frames        directory of recorded JPEG frames, served in file name order; synthetic frames when null
+ * @param fps           frame rate of the stub robot's video stream
+ * @param responses     file of recorded LLM answers, one JSON answer per line; a built in set when null
+ * @param localLatency  time until the first chunk of the stub Ollama model
+ * @param cloudLatency  time until the first chunk of the stub Gemini model
+ * @param chunkSpacing  time between streamed chunks of an answer
+ * @param pipelined     drive the sessions with the pipelined loop instead of the sequential one
+ * @param driverArgs    arguments passed through to the driver
+ */
+record BenchOptions(
+    List<Integer> sessions,
+    Duration warmup,
+    Duration duration,
+    Path frames,
+    int fps,
+    Path responses,
+    LatencyDistribution localLatency,
+    LatencyDistribution cloudLatency,
+    Duration chunkSpacing,
+    boolean pipelined,
+    List<String> driverArgs) {
+
+    private static final String PREFIX = "--bench.";
+
+    static BenchOptions parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        List<String> driverArgs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(PREFIX) && arg.contains("=")) {
+                int separator = arg.indexOf('=');
+                options.put(arg.substring(PREFIX.length(), separator), arg.substring(separator + 1));
+            } else {
+                driverArgs.add(arg);
+            }
+        }
+        var result = new BenchOptions(
+            Arrays.stream(options.getOrDefault("sessions", "1,2,4,8").split(","))
+                .map(String::trim)
+                .map(Integer::parseInt)
+                .toList(),
+            duration(options.getOrDefault("warmup", "15s")),
+            duration(options.getOrDefault("duration", "30s")),
+            options.containsKey("frames") ? Path.of(options.remove("frames")) : null,
+            Integer.parseInt(options.getOrDefault("fps", "15")),
+            options.containsKey("responses") ? Path.of(options.remove("responses")) : null,
+            LatencyDistribution.parse(options.getOrDefault("local-latency", "400ms/1200ms")),
+            LatencyDistribution.parse(options.getOrDefault("cloud-latency", "1500ms/5s")),
+            duration(options.getOrDefault("chunk-spacing", "20ms")),
+            Boolean.parseBoolean(options.getOrDefault("pipelined", "false")),
+            List.copyOf(driverArgs));
+        options.keySet().removeAll(List.of("sessions", "warmup", "duration", "fps", "local-latency", "cloud-latency", "chunk-spacing", "pipelined"));
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown benchmark options " + options.keySet());
+        }
+        return result;
+    }
+
+    static Duration duration(String value) {
+        return DurationStyle.detectAndParse(value.trim());
+    }
+}
@@ -0,0 +1,36 @@
+package io.github.bmd007.ai.kale_kaj_driver.bench;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Log-normal latency given by its median and p95, the usual shape of LLM response times:
+ * most calls close to the median and a long tail of slow ones.
+ * A p95 not above the median gives a fixed latency.
+ */
+record LatencyDistribution(Duration median, Duration p95) {
+
+    // z score of the 95th percentile of the standard normal distribution
+    private static final double Z_95 = 1.6449;
+
+    static LatencyDistribution parse(String value) {
+        // "800ms" or "800ms/3s", median and p95
+        String[] parts = value.split("/");
+        Duration median = BenchOptions.duration(parts[0]);
+        return new LatencyDistribution(median, parts.length > 1 ? BenchOptions.duration(parts[1]) : median);
+    }
+
+    Duration sample() {
+        if (p95.compareTo(median) <= 0) {
+            return median;
+        }
+        double sigma = Math.log((double) p95.toNanos() / median.toNanos()) / Z_95;
+        double factor = Math.exp(sigma * ThreadLocalRandom.current().nextGaussian());
+        return Duration.ofNanos((long) (median.toNanos() * factor));
+    }
+
+    @Override
+    public String toString() {
+        return "median " + median.toMillis() + "ms, p95 " + p95.toMillis() + "ms";
+    }
+}
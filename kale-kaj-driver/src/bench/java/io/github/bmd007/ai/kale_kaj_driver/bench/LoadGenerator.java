@@ -0,0 +1,141 @@
+package io.github.bmd007.ai.kale_kaj_driver.bench;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps a number of {@code /agent} sessions running against the driver for a while and measures their steps.
+ * A session that ends, the driver stops after a fixed number of iterations, is replaced by a new one right away.
+ */
+final class LoadGenerator {
+
+    private static final String GOAL = "Drive to the orange ball and stop in front of it";
+    private static final ParameterizedTypeReference<ServerSentEvent<String>> EVENT = new ParameterizedTypeReference<>() {
+    };
+    private static final String BREAKDOWN_EVENT = "step-breakdown";
+
+    private final WebClient client;
+    private final ObjectMapper objectMapper;
+    private final boolean pipelined;
+    private final LongSupplier llmCalls;
+    private final LongSupplier moves;
+
+    LoadGenerator(WebClient client, ObjectMapper objectMapper, boolean pipelined, LongSupplier llmCalls, LongSupplier moves) {
+        this.client = client;
+        this.objectMapper = objectMapper;
+        this.pipelined = pipelined;
+        this.llmCalls = llmCalls;
+        this.moves = moves;
+    }
+
+    RunResult run(int sessions, Duration duration) {
+        var steps = new StepRecorder();
+        var llmMillis = new LongAdder();
+        var actuationMillis = new LongAdder();
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        long callsBefore = llmCalls.getAsLong();
+        long movesBefore = moves.getAsLong();
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long allocatedBefore = threads.getTotalThreadAllocatedBytes();
+        long started = System.nanoTime();
+
+        Flux.range(0, sessions)
+            .flatMap(ignored -> session(steps, llmMillis, actuationMillis).repeat(), sessions)
+            .take(duration)
+            .blockLast(duration.plusMinutes(1));
+
+        return new RunResult(
+            sessions,
+            Duration.ofNanos(System.nanoTime() - started),
+            steps.toArray(),
+            llmMillis.sum(),
+            actuationMillis.sum(),
+            llmCalls.getAsLong() - callsBefore,
+            moves.getAsLong() - movesBefore,
+            threads.getTotalThreadAllocatedBytes() - allocatedBefore,
+            gcCount() - gcCountBefore,
+            gcMillis() - gcMillisBefore);
+    }
+
+    private Flux<ServerSentEvent<String>> session(StepRecorder steps, LongAdder llmMillis, LongAdder actuationMillis) {
+        return Flux.defer(() -> {
+            long[] previous = {System.nanoTime()};
+            return client.post()
+                .uri("/agent")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(Map.of("goal", GOAL, "pipelined", pipelined))
+                .retrieve()
+                .bodyToFlux(EVENT)
+                .filter(event -> event.data() != null)
+                .doOnNext(event -> {
+                    if (BREAKDOWN_EVENT.equals(event.event())) {
+                        JsonNode breakdown = readTree(event.data());
+                        llmMillis.add(breakdown.path("llmMillis").asLong());
+                        actuationMillis.add(breakdown.path("actuationMillis").asLong());
+                        return;
+                    }
+                    if (event.event() != null) {
+                        // a robot failure rides along with the step it belongs to, it is not a step of its own
+                        return;
+                    }
+                    long now = System.nanoTime();
+                    steps.add(now - previous[0]);
+                    previous[0] = now;
+                });
+        });
+    }
+
+    private JsonNode readTree(String json) {
+        try {
+            return objectMapper.readTree(json);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unreadable step breakdown " + json, e);
+        }
+    }
+
+    private static long gcCount() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionCount)
+            .filter(count -> count > 0)
+            .sum();
+    }
+
+    private static long gcMillis() {
+        return ManagementFactory.getGarbageCollectorMXBeans().stream()
+            .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+            .filter(time -> time > 0)
+            .sum();
+    }
+
+    // step times arrive from the event loop threads of all sessions
+    private static final class StepRecorder {
+        private long[] nanos = new long[1024];
+        private int size;
+
+        private synchronized void add(long value) {
+            if (size == nanos.length) {
+                nanos = Arrays.copyOf(nanos, size * 2);
+            }
+            nanos[size++] = value;
+        }
+
+        private synchronized long[] toArray() {
+            return Arrays.copyOf(nanos, size);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package io.github.bmd007.ai.kale_kaj_driver.bench;
+
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.metadata.ChatResponseMetadata;
+import org.springframework.ai.chat.metadata.DefaultUsage;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.model.Generation;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stands in for Ollama or Gemini: answers every prompt with the next recorded answer, in order and round robin,
+ * streamed in small chunks after a first chunk latency drawn from the configured distribution.
+ * Like the real providers, the last chunk carries the token usage and the model name.
+ */
+final class RecordedChatModel implements ChatModel {
+
+    // a mix of confident answers, a low confidence one the cascade escalates and a reversal it double checks
+    private static final List<String> DEFAULT_ANSWERS = List.of(
+        "{\"actions\":[\"FORWARD\",\"FORWARD\"],\"confidence\":0.9,\"thought\":\"The path ahead is clear.\"}",
+        "{\"actions\":[\"LEFT\",\"FORWARD\"],\"confidence\":0.8,\"thought\":\"An obstacle on the right, going around it on the left.\"}",
+        "{\"actions\":[\"FORWARD\"],\"confidence\":0.4,\"thought\":\"Hard to tell what is ahead.\"}",
+        "{\"actions\":[\"RIGHT\"],\"confidence\":0.85,\"thought\":\"The goal is slightly to the right.\"}",
+        "{\"actions\":[\"LEFT\"],\"confidence\":0.7,\"thought\":\"Turning back towards the goal.\"}",
+        "{\"actions\":[\"BACKWARD\",\"RIGHT\"],\"confidence\":0.75,\"thought\":\"Too close to the wall, backing off.\"}");
+    private static final int CHUNK_LENGTH = 16;
+    private static final int TOKENS_PER_IMAGE = 258;
+
+    private final String model;
+    private final List<String> answers;
+    private final LatencyDistribution firstChunkLatency;
+    private final Duration chunkSpacing;
+    private final AtomicLong calls = new AtomicLong();
+
+    RecordedChatModel(String model, List<String> answers, LatencyDistribution firstChunkLatency, Duration chunkSpacing) {
+        this.model = model;
+        this.answers = answers;
+        this.firstChunkLatency = firstChunkLatency;
+        this.chunkSpacing = chunkSpacing;
+    }
+
+    static List<String> answers(Path file) throws IOException {
+        if (file == null) {
+            return DEFAULT_ANSWERS;
+        }
+        var answers = Files.readAllLines(file).stream()
+            .map(String::trim)
+            .filter(line -> !line.isEmpty())
+            .toList();
+        if (answers.isEmpty()) {
+            throw new IllegalArgumentException("No recorded answers in " + file);
+        }
+        return answers;
+    }
+
+    long calls() {
+        return calls.get();
+    }
+
+    @Override
+    public ChatResponse call(Prompt prompt) {
+        String answer = nextAnswer();
+        Duration latency = firstChunkLatency.sample().plus(chunkSpacing.multipliedBy(chunks(answer).size()));
+        return Mono.delay(latency)
+            .map(ignored -> response(answer, metadata(prompt, answer)))
+            .block();
+    }
+
+    @Override
+    public Flux<ChatResponse> stream(Prompt prompt) {
+        return Flux.defer(() -> {
+            String answer = nextAnswer();
+            List<String> chunks = chunks(answer);
+            return Flux.range(0, chunks.size())
+                .concatMap(index -> Mono.delay(index == 0 ? firstChunkLatency.sample() : chunkSpacing)
+                    .map(ignored -> index == chunks.size() - 1
+                        ? response(chunks.get(index), metadata(prompt, answer))
+                        : response(chunks.get(index), ChatResponseMetadata.builder().build())));
+        });
+    }
+
+    @Override
+    public ChatOptions getDefaultOptions() {
+        return ChatOptions.builder().model(model).build();
+    }
+
+    private String nextAnswer() {
+        return answers.get((int) (calls.getAndIncrement() % answers.size()));
+    }
+
+    private ChatResponseMetadata metadata(Prompt prompt, String answer) {
+        return ChatResponseMetadata.builder()
+            .model(model)
+            .usage(new DefaultUsage(promptTokens(prompt), answer.length() / 4))
+            .build();
+    }
+
+    // the same rough estimate the driver uses, four characters a token and a flat rate per image
+    private static int promptTokens(Prompt prompt) {
+        int tokens = prompt.getContents().length() / 4;
+        for (var message : prompt.getInstructions()) {
+            if (message instanceof UserMessage userMessage) {
+                tokens += userMessage.getMedia().size() * TOKENS_PER_IMAGE;
+            }
+        }
+        return tokens;
+    }
+
+    private static ChatResponse response(String text, ChatResponseMetadata metadata) {
+        return new ChatResponse(List.of(new Generation(new AssistantMessage(text))), metadata);
+    }
+
+    private static List<String> chunks(String answer) {
+        List<String> chunks = new ArrayList<>(answer.length() / CHUNK_LENGTH + 1);
+        for (int start = 0; start < answer.length(); start += CHUNK_LENGTH) {
+            chunks.add(answer.substring(start, Math.min(answer.length(), start + CHUNK_LENGTH)));
+        }
+        return chunks;
+    }
+}
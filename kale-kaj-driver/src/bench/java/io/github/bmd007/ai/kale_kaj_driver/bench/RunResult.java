@@ -0,0 +1,43 @@
+package io.github.bmd007.ai.kale_kaj_driver.bench;
+
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * What one run at a given number of concurrent sessions measured.
+ *
+ * @param stepNanos       wall time of every step, from the previous step of its session (or the request) to this one
+ * @param llmMillis       summed LLM time of the steps, as reported in their breakdowns
+ * @param actuationMillis summed time spent moving the car, as reported in the breakdowns
+ * @param allocatedBytes  heap allocated by every thread of the JVM during the run, the load generator included
+ * @param gcMillis        time the collectors reported spending during the run
+ */
+record RunResult(int sessions, Duration elapsed, long[] stepNanos, long llmMillis, long actuationMillis,
+                 long llmCalls, long moves, long allocatedBytes, long gcCount, long gcMillis) {
+
+    int steps() {
+        return stepNanos.length;
+    }
+
+    double stepsPerSecond() {
+        return steps() / (elapsed.toNanos() / 1e9);
+    }
+
+    double stepMillis(double percentile) {
+        if (stepNanos.length == 0) {
+            return Double.NaN;
+        }
+        long[] sorted = stepNanos.clone();
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.clamp(index, 0, sorted.length - 1)] / 1e6;
+    }
+
+    double allocationMegabytesPerSecond() {
+        return allocatedBytes / 1e6 / (elapsed.toNanos() / 1e9);
+    }
+
+    double allocatedKilobytesPerStep() {
+        return steps() == 0 ? Double.NaN : allocatedBytes / 1e3 / steps();
+    }
+}
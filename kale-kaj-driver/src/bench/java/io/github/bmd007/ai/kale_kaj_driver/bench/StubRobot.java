@@ -0,0 +1,168 @@
+package io.github.bmd007.ai.kale_kaj_driver.bench;
+
+import io.netty.handler.codec.http.HttpResponseStatus;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.netty.DisposableServer;
+import reactor.netty.http.server.HttpServer;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * The robot's HTTP API as far as the driver uses it: the MJPEG video stream, capture-image, move and health.
+ * Frames are played back in a loop at a fixed rate, framed exactly like the robot frames them,
+ * moves are only counted, an awaited move is acknowledged after a short simulated motion.
+ */
+final class StubRobot implements AutoCloseable {
+
+    private static final String FRAME_SEQUENCE_HEADER = "X-Frame-Sequence";
+    private static final int SYNTHETIC_FRAMES = 60;
+    private static final Duration MOTION = Duration.ofMillis(50);
+
+    private final List<byte[]> frames;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicReference<Frame> latest = new AtomicReference<>();
+    private final Sinks.Many<byte[]> stream = Sinks.many().multicast().directBestEffort();
+    private final LongAdder moves = new LongAdder();
+    private final Disposable ticker;
+    private final DisposableServer server;
+
+    private record Frame(long sequence, byte[] jpeg) {
+    }
+
+    private StubRobot(List<byte[]> frames, int fps) {
+        this.frames = frames;
+        this.ticker = Flux.interval(Duration.ofMillis(1000 / fps))
+            .onBackpressureDrop()
+            .subscribe(tick -> next());
+        next();
+        this.server = HttpServer.create()
+            .host("localhost")
+            .port(0)
+            .route(routes -> routes
+                .get("/v3/video-stream", (request, response) -> response
+                    .header("Content-Type", "multipart/x-mixed-replace; boundary=frame")
+                    .sendByteArray(stream.asFlux()))
+                .get("/v3/capture-image", (request, response) -> {
+                    var frame = latest.get();
+                    return response
+                        .header("Content-Type", "image/jpeg")
+                        .header(FRAME_SEQUENCE_HEADER, String.valueOf(frame.sequence()))
+                        .sendByteArray(Mono.just(frame.jpeg()));
+                })
+                .post("/move", (request, response) -> {
+                    moves.increment();
+                    if (request.uri().contains("await=true")) {
+                        return Mono.delay(MOTION).then(response.status(HttpResponseStatus.OK).send().then());
+                    }
+                    return response.status(HttpResponseStatus.OK).send();
+                })
+                .get("/actuator/health", (request, response) -> response
+                    .header("Content-Type", "application/json")
+                    .sendString(Mono.just("{\"status\":\"UP\"}"))))
+            .bindNow();
+    }
+
+    /**
+     * @param directory recorded JPEG frames, or null for synthetic ones
+     */
+    static StubRobot start(Path directory, int fps) throws IOException {
+        return new StubRobot(directory == null ? syntheticFrames() : recordedFrames(directory), fps);
+    }
+
+    String baseUrl() {
+        return "http://localhost:" + server.port();
+    }
+
+    long moves() {
+        return moves.sum();
+    }
+
+    int frameCount() {
+        return frames.size();
+    }
+
+    private void next() {
+        long number = sequence.incrementAndGet();
+        byte[] jpeg = frames.get((int) (number % frames.size()));
+        latest.set(new Frame(number, jpeg));
+        String header = "--frame\r\nContent-Type: image/jpeg\r\nContent-Length: " + jpeg.length
+            + "\r\n" + FRAME_SEQUENCE_HEADER + ": " + number + "\r\n\r\n";
+        synchronized (stream) {
+            stream.tryEmitNext(header.getBytes(StandardCharsets.ISO_8859_1));
+            stream.tryEmitNext(jpeg);
+            stream.tryEmitNext("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static List<byte[]> recordedFrames(Path directory) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : files.sorted().toList()) {
+                String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+                if (name.endsWith(".jpg") || name.endsWith(".jpeg")) {
+                    frames.add(Files.readAllBytes(file));
+                }
+            }
+        }
+        if (frames.isEmpty()) {
+            throw new IllegalArgumentException("No JPEG frames in " + directory);
+        }
+        return frames;
+    }
+
+    // a ball rolling over a gradient, every frame differs enough from the previous one to count as a scene change
+    private static List<byte[]> syntheticFrames() {
+        List<byte[]> frames = new ArrayList<>(SYNTHETIC_FRAMES);
+        for (int i = 0; i < SYNTHETIC_FRAMES; i++) {
+            var image = new BufferedImage(640, 480, BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D graphics = image.createGraphics();
+            try {
+                graphics.setPaint(new GradientPaint(0, 0, Color.DARK_GRAY, 640, 480, Color.LIGHT_GRAY));
+                graphics.fillRect(0, 0, 640, 480);
+                graphics.setColor(Color.ORANGE);
+                int x = (int) (280 + 240 * Math.sin(2 * Math.PI * i / SYNTHETIC_FRAMES));
+                graphics.fillOval(x - 60, 180, 120, 120);
+                graphics.setColor(Color.WHITE);
+                graphics.drawString("frame " + i, 20, 30);
+            } finally {
+                graphics.dispose();
+            }
+            var jpeg = new ByteArrayOutputStream(64 * 1024);
+            try {
+                ImageIO.write(image, "jpeg", jpeg);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            frames.add(jpeg.toByteArray());
+        }
+        return frames;
+    }
+
+    @Override
+    public void close() {
+        ticker.dispose();
+        stream.tryEmitComplete();
+        server.disposeNow();
+    }
+}
@@ -0,0 +1,31 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * @param awaitMotion       a move completes when the robot reports its motors stopped, the loop then waits exactly as long
+ *                          as the car moves; turn off for a robot that only acknowledges receiving the move
+ * @param moveSpacing       without await-motion, pause after each move in the sequential loop, lets the car settle before the next move or frame
+ * @param motionDuration    without await-motion, how long one move keeps the car busy, used to chain moves in the pipelined loop
+ * @param speculate         pipelined loop only, start the next LLM call when the last move of a plan is dispatched; off by
+ *                          default, the frame it plans on is taken before that move shows, so the plan is mostly discarded
+ *                          and its calls paid for nothing
+ * @param maxObservationLag pipelined loop only, a speculative plan based on a frame older than this at the end of motion is
+ *                          discarded, also when the scene still looks the same
+ * @param stepBudget        deadline for the LLM answer of one step, including the time queued for a permit
+ * @param fallbackActions   what the car does when a step runs out of budget, nothing by default so it stands still and looks again
+ */
+@ConfigurationProperties("kale-kaj-driver.agent")
+public record AgentProperties(
+    @DefaultValue("true") boolean awaitMotion,
+    @DefaultValue("1500ms") Duration moveSpacing,
+    @DefaultValue("600ms") Duration motionDuration,
+    @DefaultValue("false") boolean speculate,
+    @DefaultValue("700ms") Duration maxObservationLag,
+    @DefaultValue("20s") Duration stepBudget,
+    @DefaultValue List<String> fallbackActions) {
+}
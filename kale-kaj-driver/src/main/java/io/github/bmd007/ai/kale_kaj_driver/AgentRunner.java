@@ -0,0 +1,945 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import io.github.bmd007.ai.kale_kaj_driver.AiResource.AgentStep;
+import io.github.bmd007.ai.kale_kaj_driver.AiResource.LlmResponse;
+import io.github.bmd007.ai.kale_kaj_driver.llm.DecisionCache;
+import io.github.bmd007.ai.kale_kaj_driver.llm.LlmConcurrencyLimiter;
+import io.github.bmd007.ai.kale_kaj_driver.llm.LlmCallReport;
+import io.github.bmd007.ai.kale_kaj_driver.llm.ModelCascade;
+import io.github.bmd007.ai.kale_kaj_driver.llm.ResponseValidator;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.ActionParsed;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.ResponseParsed;
+import io.github.bmd007.ai.kale_kaj_driver.metrics.CostLedger;
+import io.github.bmd007.ai.kale_kaj_driver.metrics.StepBreakdown;
+import io.github.bmd007.ai.kale_kaj_driver.recording.RecordedStep;
+import io.github.bmd007.ai.kale_kaj_driver.recording.RunRecorder;
+import io.github.bmd007.ai.kale_kaj_driver.session.AgentSession;
+import io.github.bmd007.ai.kale_kaj_driver.session.AgentSessionManager;
+import io.github.bmd007.ai.kale_kaj_driver.session.HistoryCompactor;
+import io.github.bmd007.ai.kale_kaj_driver.session.LlmFrame;
+import io.github.bmd007.ai.kale_kaj_driver.vision.ImagePreprocessor;
+import io.github.bmd007.ai.kale_kaj_driver.vision.MosaicComposer;
+import io.github.bmd007.ai.kale_kaj_driver.vision.MosaicProperties;
+import io.github.bmd007.ai.kale_kaj_driver.vision.PreprocessedFrame;
+import io.github.bmd007.ai.kale_kaj_driver.vision.SceneChangeDetector;
+import io.github.bmd007.ai.kale_kaj_driver.vision.SceneChangeProperties;
+import io.github.bmd007.ai.kale_kaj_driver.vision.VisionGuard;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.content.Media;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.util.context.Context;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+/**
+ * The perceive, think, act loop behind {@code /agent}.
+ */
+@Slf4j
+@Service
+public class AgentRunner {
+
+    // the answer format is enforced by the providers' structured output, the prompt only explains the fields
+    public static final String SYSTEM_PROMPT = """
+        You are controlling a robotic car through its front-facing camera, you get its first-person view.
+        Decide the next moves towards the goal, answer with a JSON object:
+        - actions: moves out of FORWARD, BACKWARD, LEFT, RIGHT, written first since the car starts moving while you write the rest
+        - confidence: 0 to 1, how sure you are these moves bring the car closer to the goal
+        - thought: short analysis of what you see and why
+        Use an empty actions array only once the goal is fully achieved.
+        When the view is unclear, make your best guess and be decisive.
+        Example: {"actions": ["LEFT", "FORWARD"], "confidence": 0.7, "thought": "Obstacle ahead, going around it on the left"}
+        """;
+    private static final int MAX_ITERATIONS = 50;
+
+    private final RobotRegistry robotRegistry;
+    private final AgentSessionManager sessionManager;
+    private final ModelCascade modelCascade;
+    private final AgentProperties agentProperties;
+    private final ImagePreprocessor imagePreprocessor;
+    private final SceneChangeDetector sceneChangeDetector;
+    private final DecisionCache decisionCache;
+    private final HistoryCompactor historyCompactor;
+    private final ResponseValidator responseValidator;
+    private final CostLedger costLedger;
+    private final RunRecorder runRecorder;
+    private final VisionGuard visionGuard;
+    private final MosaicComposer mosaicComposer;
+    private final MeterRegistry meterRegistry;
+
+    public AgentRunner(RobotRegistry robotRegistry,
+                       AgentSessionManager sessionManager,
+                       ModelCascade modelCascade,
+                       AgentProperties agentProperties,
+                       ImagePreprocessor imagePreprocessor,
+                       SceneChangeDetector sceneChangeDetector,
+                       DecisionCache decisionCache,
+                       HistoryCompactor historyCompactor,
+                       ResponseValidator responseValidator,
+                       CostLedger costLedger,
+                       RunRecorder runRecorder,
+                       VisionGuard visionGuard,
+                       MosaicComposer mosaicComposer,
+                       MeterRegistry meterRegistry) {
+        this.robotRegistry = robotRegistry;
+        this.sessionManager = sessionManager;
+        this.modelCascade = modelCascade;
+        this.agentProperties = agentProperties;
+        this.imagePreprocessor = imagePreprocessor;
+        this.sceneChangeDetector = sceneChangeDetector;
+        this.decisionCache = decisionCache;
+        this.historyCompactor = historyCompactor;
+        this.responseValidator = responseValidator;
+        this.costLedger = costLedger;
+        this.runRecorder = runRecorder;
+        this.visionGuard = visionGuard;
+        this.mosaicComposer = mosaicComposer;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * An LLM answer together with what it was based on.
+     * The exchange only becomes part of the session history once the loop decides to act on it.
+     * @param skipped   whether the decision was taken on the fast path for an unchanged scene, without the LLM
+     * @param actuation what the car made of the plan, null until its moves have run
+     */
+    private record Decision(AgentStep step, List<Message> exchange, PreprocessedFrame observation, boolean skipped,
+                            Actuation actuation) {
+
+        private Decision(AgentStep step, List<Message> exchange, PreprocessedFrame observation, boolean skipped) {
+            this(step, exchange, observation, skipped, null);
+        }
+
+        private Decision withBreakdown(StepBreakdown breakdown) {
+            return new Decision(step.withBreakdown(breakdown), exchange, observation, skipped, actuation);
+        }
+
+        private Decision after(Actuation actuation) {
+            var step = this.step.withFailure(actuation.failure() != null ? actuation.failure() : this.step.failure());
+            if (actuation.veto() != null) {
+                step = step.withObservation(step.observation() + ", rest of the plan vetoed: " + actuation.veto());
+            }
+            return new Decision(step, exchange, observation, skipped, actuation);
+        }
+    }
+
+    /**
+     * @param moves   the moves the car made, in order
+     * @param millis  time the car spent on the moves, spacing included
+     * @param failure why the moves stopped short, null when all of them were made
+     * @param veto    why the vision guard stopped the plan, null when it did not
+     */
+    private record Actuation(List<String> moves, long millis, String failure, String veto) {
+
+        private static final Actuation NONE = new Actuation(List.of(), 0, null, null);
+
+        private Actuation plus(Actuation other) {
+            var made = new ArrayList<>(moves);
+            made.addAll(other.moves);
+            return new Actuation(List.copyOf(made), millis + other.millis,
+                failure != null ? failure : other.failure, veto != null ? veto : other.veto);
+        }
+
+        private boolean stoppedShort() {
+            return failure != null || veto != null;
+        }
+
+        private boolean attempted() {
+            return !moves.isEmpty() || stoppedShort();
+        }
+
+        /**
+         * @return what the next question tells the LLM about a plan that stopped short, null when all of it was made
+         */
+        private String shortfall() {
+            var made = moves.isEmpty() ? "none" : String.join(", ", moves);
+            if (failure != null) {
+                return "The car made %s of the previous moves and could not make the next one: %s".formatted(made, failure);
+            }
+            if (veto != null) {
+                return "The car made %s of the previous moves, the rest were called off: %s".formatted(made, veto);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A pipelined step once its moves have run, together with the plan the loop continues with.
+     * @param acted null before the first plan is acted on
+     */
+    private record Stage(Decision acted, Decision next) {
+    }
+
+    /**
+     * What one LLM step cost, filled in while its events stream by.
+     * Signals of one stream are delivered serially, so plain fields do.
+     */
+    private static final class LlmTrace {
+        private final long asked = System.nanoTime();
+        private final List<LlmCallReport> calls = new ArrayList<>();
+        private long answered = -1;
+        private long parseNanos;
+        private int promptTokens;
+        private int answerTokens;
+        private String prompt;
+        private String answer;
+
+        private void observe(StreamingResponseParser.Event event) {
+            if (event instanceof ResponseParsed response) {
+                answered = System.nanoTime();
+                answer = response.json();
+                answerTokens = answer.length() / 4;
+            } else if (event instanceof LlmCallReport report) {
+                calls.add(report);
+            }
+        }
+
+        private long llmMillis() {
+            return Duration.ofNanos((answered < 0 ? System.nanoTime() : answered) - asked).toMillis();
+        }
+    }
+
+    /**
+     * A decision that is not booked yet, a speculative plan only becomes a step once the loop acts on it.
+     * @param trace         null for a decision taken from the cache
+     * @param recentActions the actions the LLM was asked after, null for a decision taken from the cache
+     */
+    private record Plan(Decision decision, LlmTrace trace, List<String> recentActions) {
+    }
+
+    public Flux<AgentStep> run(AgentSession session, boolean pipelined) {
+        var replay = session.replay();
+        if (replay != null) {
+            return (pipelined ? pipelinedLoop(session) : sequentialLoop(session))
+                .take(replay.steps())
+                .doOnNext(replay::check);
+        }
+        runRecorder.open(session.id(), session.goal(), pipelined);
+        var iterations = new AtomicInteger();
+        var reachedGoal = new AtomicBoolean();
+        return (pipelined ? pipelinedLoop(session) : sequentialLoop(session))
+            .doOnNext(step -> {
+                iterations.set(step.iteration() + 1);
+                reachedGoal.compareAndSet(false, step.completed());
+            })
+            .doFinally(signal -> {
+                runRecorder.close(session.id());
+                recordIterations(iterations.get(), reachedGoal.get());
+            });
+    }
+
+    // iterations to goal is what a richer view per call, such as a mosaic, should bring down
+    private void recordIterations(int iterations, boolean reachedGoal) {
+        if (iterations == 0) {
+            return;
+        }
+        var mosaic = mosaicComposer.properties();
+        DistributionSummary.builder("kale_kaj_driver.session.iterations")
+            .description("Steps an agent session took, by whether it reached its goal and the mosaic setting")
+            .tag("outcome", reachedGoal ? "goal" : "stopped")
+            .tag("mosaic", mosaic.enabled() ? mosaic.source().name() : "OFF")
+            .register(meterRegistry)
+            .record(iterations);
+    }
+
+    /**
+     * Moves are dispatched while the LLM is still streaming its answer, the first one as soon as the first
+     * element of the actions array is complete.
+     */
+    private Flux<AgentStep> sequentialLoop(AgentSession session) {
+        return Flux.range(0, MAX_ITERATIONS)
+            .concatMap(iteration -> observe(session, iteration, latestFrame(session, iteration))
+                .flatMap(frame -> fastPath(session, iteration, frame)
+                    .switchIfEmpty(Mono.defer(() -> cached(session, iteration, frame)))
+                    .flatMap(decision -> executeMovements(session, Flux.fromIterable(decision.step().actions()))
+                        .map(actuation -> account(session, decision, null, actuation.millis()).after(actuation)))
+                    .switchIfEmpty(Mono.defer(() -> streamAndAct(session, iteration, frame))))
+                .onErrorResume(RobotCallException.class, e -> robotDown(session, iteration, e))
+                .doOnNext(decision -> commit(session, decision))
+                .map(Decision::step))
+            .takeUntil(AgentStep::completed);
+    }
+
+    private Mono<Decision> streamAndAct(AgentSession session, int iteration, PreprocessedFrame frame) {
+        var question = question(session, iteration, frame.frame(), null);
+        var recentActions = session.lastActions();
+        var trace = new LlmTrace();
+        // what the streamed moves did so far, survives the cancellation when the step runs out of budget
+        var progress = new AtomicReference<>(Actuation.NONE);
+        return ask(session, iteration, question, trace)
+            .publish(events -> Mono.zip(
+                executeMovements(session, events.ofType(ActionParsed.class).map(ActionParsed::action), progress),
+                events.ofType(ResponseParsed.class).last().timeout(agentProperties.stepBudget())))
+            .next()
+            .flatMap(executedAndResponse -> {
+                var decision = toDecision(executedAndResponse.getT2(), iteration, question, frame, trace);
+                cache(session, recentActions, decision, Duration.ofMillis(trace.llmMillis()));
+                var step = decision.step();
+                var streamed = executedAndResponse.getT1();
+                // the answer could only be parsed as a whole, so nothing moved while it was streamed
+                if (!streamed.attempted() && !step.completed() && !step.actions().isEmpty()) {
+                    return executeMovements(session, Flux.fromIterable(step.actions()))
+                        .map(actuation -> account(session, decision, trace, actuation.millis()).after(actuation));
+                }
+                return Mono.just(account(session, decision, trace, streamed.millis()).after(streamed));
+            })
+            .onErrorResume(TimeoutException.class, e -> {
+                var made = progress.get();
+                if (made.attempted()) {
+                    // the car already acted on the answer, what it did is the step
+                    var decision = cutOff(session, iteration, frame, question, made.moves());
+                    cache(session, recentActions, decision, Duration.ofMillis(trace.llmMillis()));
+                    return Mono.just(account(session, decision, trace, made.millis()).after(made));
+                }
+                var decision = fallback(session, iteration, frame);
+                return executeMovements(session, Flux.fromIterable(decision.step().actions()))
+                    .map(actuation -> account(session, decision, trace, actuation.millis()).after(actuation));
+            });
+    }
+
+    /**
+     * Overlaps thinking and acting: moves run back to back, the frame for the next step is taken the moment motion ends,
+     * and with speculation enabled the next LLM call already starts when the last move of the current plan is dispatched.
+     * The speculative plan is only executed when the frame taken after the motion still shows the scene it was based on,
+     * otherwise it is cancelled right when the motion ends instead of being waited for.
+     * A step is reported once its moves have run, so it carries their time like a step of the sequential loop does.
+     */
+    private Flux<AgentStep> pipelinedLoop(AgentSession session) {
+        return observe(session, 0, latestFrame(session, 0))
+            .flatMap(frame -> decide(session, 0, frame, null))
+            .onErrorResume(RobotCallException.class, e -> robotDown(session, 0, e))
+            .doOnNext(decision -> commit(session, decision))
+            .map(first -> new Stage(null, first))
+            .expand(stage -> isLast(stage.next()) ? Mono.empty() : actAndThinkAhead(session, stage.next()))
+            .concatMapIterable(stage -> {
+                var steps = new ArrayList<AgentStep>();
+                if (stage.acted() != null) {
+                    steps.add(stage.acted().step());
+                }
+                // the last plan is not acted on, nothing else would report it
+                if (isLast(stage.next())) {
+                    steps.add(stage.next().step());
+                }
+                return steps;
+            });
+    }
+
+    private static boolean isLast(Decision decision) {
+        var step = decision.step();
+        return step.completed() || step.iteration() + 1 >= MAX_ITERATIONS;
+    }
+
+    private Mono<Stage> actAndThinkAhead(AgentSession session, Decision current) {
+        int next = current.step().iteration() + 1;
+        Sinks.One<RpiService.MOVE_DIRECTION> lastMoveDispatched = Sinks.one();
+        // the speculation runs beside the motion, the loop only waits for its plan once the frame after the motion vouched for it
+        Sinks.One<PreprocessedFrame> speculatedOn = Sinks.one();
+        Sinks.One<Plan> speculated = Sinks.one();
+        var spent = new AtomicReference<LlmTrace>();
+        Disposable speculation = lastMoveDispatched.asMono()
+            .filter(lastMove -> agentProperties.speculate() && !sweepsHead())
+            .flatMap(lastMove -> observe(session, next, latestFrame(session, next))
+                .doOnNext(speculatedOn::tryEmitValue)
+                .flatMap(frame -> speculate(session, next, frame,
+                    "The car is still executing %s, decide the moves that follow it.".formatted(lastMove), spent)))
+            // the frame after the motion can not be taken either then, and pauses the loop
+            .onErrorResume(RobotCallException.class, e -> Mono.empty())
+            .doFinally(signal -> speculatedOn.tryEmitEmpty())
+            .subscribe(speculated::tryEmitValue, speculated::tryEmitError, speculated::tryEmitEmpty);
+
+        return executeMovementsBackToBack(session, current.step().actions(), lastMoveDispatched)
+            .flatMap(actuation -> {
+                Instant motionEnd = Instant.now();
+                var acted = actuated(session, current, actuation);
+                return observe(session, next, frameAfter(session, next, motionEnd))
+                    .flatMap(frame -> speculatedOn.asMono()
+                        // the speculative plan carries on from a car that made all of the current one, in the scene it saw
+                        .filter(basis -> !actuation.stoppedShort() && !isStale(basis, frame, motionEnd))
+                        .flatMap(basis -> speculated.asMono())
+                        .map(plan -> keep(session, plan))
+                        .switchIfEmpty(Mono.defer(() -> {
+                            discard(session, next, speculation, spent.get());
+                            return decide(session, next, frame, null);
+                        })))
+                    .onErrorResume(RobotCallException.class, e -> {
+                        discard(session, next, speculation, spent.get());
+                        return robotDown(session, next, e);
+                    })
+                    .map(decision -> new Stage(acted, decision));
+            })
+            .doOnNext(stage -> commit(session, stage.next()))
+            // a run that ends while the car moves takes its speculation along
+            .doFinally(signal -> speculation.dispose());
+    }
+
+    /**
+     * Cancels a speculative plan the loop does not act on, whether it is still being thought about or not.
+     * The LLM calls it made were paid for all the same, they are booked apart from the steps.
+     * @param trace null when the speculation asked no LLM
+     */
+    private void discard(AgentSession session, int iteration, Disposable speculation, LlmTrace trace) {
+        speculation.dispose();
+        if (trace == null) {
+            return;
+        }
+        log.debug("Session {}: discarding the speculative plan for iteration {}", session.id(), iteration);
+        if (session.replay() == null) {
+            costLedger.recordDiscarded(session.id(), List.copyOf(trace.calls), trace.promptTokens, trace.answerTokens);
+        }
+    }
+
+    /**
+     * Adds the time of a pipelined step's moves to its breakdown and to the session's totals, the rest of the step was
+     * booked when it was decided. The plan was committed to the session before it ran, what the car made of it is
+     * remembered now.
+     */
+    private Decision actuated(AgentSession session, Decision decision, Actuation actuation) {
+        var breakdown = decision.step().breakdown();
+        // a step the robot was down for has no breakdown and saw nothing
+        if (breakdown == null) {
+            return decision;
+        }
+        session.rememberMoves(actuation.moves(), actuation.shortfall());
+        if (session.replay() == null) {
+            costLedger.recordActuation(session.id(), actuation.millis());
+        }
+        return decision.withBreakdown(breakdown.withActuationMillis(actuation.millis())).after(actuation);
+    }
+
+    /**
+     * A speculative plan is stale when the frame taken after the motion shows a different scene than the one it was
+     * based on, or when its frame is older than {@code max-observation-lag} at the end of motion.
+     */
+    private boolean isStale(PreprocessedFrame observation, PreprocessedFrame afterMotion, Instant motionEnd) {
+        if (observation.frame().receivedAt().isBefore(motionEnd.minus(agentProperties.maxObservationLag()))) {
+            return true;
+        }
+        // a frame that could not be hashed can not vouch for the plan
+        if (observation.hash() == null || afterMotion.hash() == null) {
+            return true;
+        }
+        return observation.hash().distance(afterMotion.hash()) > sceneChangeDetector.properties().threshold();
+    }
+
+    /**
+     * The returned frame is the preprocessed one, the dashboard shows exactly what the LLM gets to see.
+     */
+    private Mono<PreprocessedFrame> observe(AgentSession session, int iteration, Mono<Frame> frame) {
+        return frame.elapsed()
+            .doOnNext(fetched -> runRecorder.observed(session.id(), iteration, fetched.getT2()))
+            .flatMap(fetched -> imagePreprocessor.preprocess(fetched.getT2())
+                .map(preprocessed -> preprocessed.withImageFetch(Duration.ofMillis(fetched.getT1()))))
+            .doOnNext(preprocessed -> log.info("Session {} iteration {}: frame {} is {}x{}, saved {} bytes and about {} image tokens",
+                session.id(), iteration, preprocessed.frame().sequence(), preprocessed.width(), preprocessed.height(),
+                preprocessed.bytesSaved(), preprocessed.tokensSaved()))
+            .doOnNext(preprocessed -> sessionManager.publishFrame(session, new LlmFrame(session.id(), iteration,
+                preprocessed.frame().sequence(), Instant.now(), preprocessed.frame().jpeg())));
+    }
+
+    private Mono<Decision> decide(AgentSession session, int iteration, PreprocessedFrame frame, String note) {
+        return fastPath(session, iteration, frame)
+            .switchIfEmpty(Mono.defer(() -> cached(session, iteration, frame)))
+            .map(decision -> account(session, decision, null, null))
+            .switchIfEmpty(Mono.defer(() -> think(session, iteration, frame, note)));
+    }
+
+    /**
+     * Plans ahead on a frame taken while the car is still moving. That it looks like the previous step's frame only means
+     * the last move has not shown yet, so unlike {@link #decide} it never takes the fast path.
+     * Nothing is booked, the plan is either kept or discarded once the motion is over.
+     * @param spent set to the trace of the LLM call, a plan cancelled before it arrived is booked from it
+     */
+    private Mono<Plan> speculate(AgentSession session, int iteration, PreprocessedFrame frame, String note,
+                                 AtomicReference<LlmTrace> spent) {
+        return cached(session, iteration, frame)
+            .map(decision -> new Plan(decision, null, null))
+            .switchIfEmpty(Mono.defer(() -> {
+                var trace = new LlmTrace();
+                spent.set(trace);
+                return plan(session, iteration, frame, note, trace);
+            }));
+    }
+
+    /**
+     * @return empty when no decision was cached for a frame close enough to this one
+     */
+    private Mono<Decision> cached(AgentSession session, int iteration, PreprocessedFrame frame) {
+        // a replay hits exactly where the recorded run did, whatever the cache holds by now
+        var hit = session.replay() != null
+            ? session.replay().cacheHit(iteration)
+            : decisionCache.lookup(frame.hash(), session.goal(), session.lastActions());
+        return Mono.justOrEmpty(hit)
+            .doOnNext(response -> log.info("Session {} iteration {}: decision cache hit, {}", session.id(), iteration, response.actions()))
+            .map(response -> new Decision(new AgentStep(
+                iteration,
+                "Seen before, decision taken from the cache",
+                response.thought(),
+                response.actions(),
+                response.actions().isEmpty(),
+                null,
+                null
+            ), List.of(), frame, false));
+    }
+
+    // only plans worth repeating, a finished goal or an unparsable answer is specific to that one run
+    private void cache(AgentSession session, List<String> recentActions, Decision decision, Duration latency) {
+        var step = decision.step();
+        if (session.replay() == null && !step.completed() && !step.actions().isEmpty()) {
+            decisionCache.put(decision.observation().hash(), session.goal(), recentActions,
+                new LlmResponse(step.thought(), step.actions()), latency);
+        }
+    }
+
+    /**
+     * Answers an unchanged scene without the LLM, the same frame would get the same answer at full latency and cost.
+     * @return empty when the scene changed and the LLM has to be asked
+     */
+    private Mono<Decision> fastPath(AgentSession session, int iteration, PreprocessedFrame frame) {
+        if (!sceneChangeDetector.unchanged(session.lastScene(), frame.hash(), session.consecutiveSkips())) {
+            return Mono.empty();
+        }
+        var properties = sceneChangeDetector.properties();
+        var whenUnchanged = properties.whenUnchanged();
+        List<String> actions = switch (whenUnchanged) {
+            case REUSE_LAST_DECISION -> session.lastActions();
+            case RECOVER -> properties.recoveryActions();
+            case RECAPTURE -> List.of();
+        };
+        log.info("Session {} iteration {}: scene unchanged, {} without asking the LLM", session.id(), iteration, whenUnchanged);
+        var decision = new Decision(new AgentStep(
+            iteration,
+            "Scene unchanged since the previous step, LLM call skipped",
+            whenUnchanged.name(),
+            actions,
+            false,
+            null,
+            null
+        ), List.of(), frame, true);
+        if (whenUnchanged == SceneChangeProperties.UnchangedSceneAction.RECAPTURE) {
+            return pause(session, properties.recaptureDelay()).thenReturn(decision);
+        }
+        return Mono.just(decision);
+    }
+
+    private Mono<Decision> think(AgentSession session, int iteration, PreprocessedFrame frame, String note) {
+        return plan(session, iteration, frame, note, new LlmTrace())
+            .map(plan -> keep(session, plan));
+    }
+
+    /**
+     * Asks the LLM for the next moves without booking the answer, see {@link #keep}.
+     */
+    private Mono<Plan> plan(AgentSession session, int iteration, PreprocessedFrame frame, String note, LlmTrace trace) {
+        var question = question(session, iteration, frame.frame(), note);
+        var recentActions = session.lastActions();
+        return ask(session, iteration, question, trace)
+            .ofType(ResponseParsed.class)
+            .last()
+            .map(response -> toDecision(response, iteration, question, frame, trace))
+            .timeout(agentProperties.stepBudget(), Mono.fromSupplier(() -> fallback(session, iteration, frame)))
+            .onErrorResume(TimeoutException.class, e -> Mono.fromSupplier(() -> fallback(session, iteration, frame)))
+            .map(decision -> new Plan(decision, trace, recentActions));
+    }
+
+    /**
+     * Books a plan the loop acts on: an LLM answer goes into the decision cache, and the step is accounted.
+     */
+    private Decision keep(AgentSession session, Plan plan) {
+        var trace = plan.trace();
+        // a fallback is no answer, and a decision from the cache is in there already
+        if (trace != null && trace.answer != null) {
+            cache(session, plan.recentActions(), plan.decision(), Duration.ofMillis(trace.llmMillis()));
+        }
+        return account(session, plan.decision(), trace, null);
+    }
+
+    /**
+     * Attaches the step breakdown and books it in the cost ledger.
+     * @param trace           null when no LLM was asked
+     * @param actuationMillis null when the moves have not run yet, a pipelined step gets them added by {@link #actuated}
+     */
+    private Decision account(AgentSession session, Decision decision, LlmTrace trace, Long actuationMillis) {
+        var frame = decision.observation();
+        List<LlmCallReport> calls = trace == null ? List.of() : trace.calls;
+        int estimatedInput = trace == null ? 0 : trace.promptTokens;
+        int estimatedOutput = trace == null ? 0 : trace.answerTokens;
+        long inputTokens = 0;
+        long outputTokens = 0;
+        double cost = 0;
+        for (LlmCallReport call : calls) {
+            inputTokens += call.inputTokens() == null ? estimatedInput : call.inputTokens();
+            outputTokens += call.outputTokens() == null ? estimatedOutput : call.outputTokens();
+            cost += costLedger.cost(call, estimatedInput, estimatedOutput);
+        }
+        var breakdown = new StepBreakdown(
+            frame.imageFetch().toMillis(),
+            frame.preprocessing().toMillis(),
+            calls.isEmpty() ? 0 : calls.getLast().firstToken().toMillis(),
+            trace == null ? 0 : trace.llmMillis(),
+            trace == null ? 0 : Duration.ofNanos(trace.parseNanos).toMillis(),
+            actuationMillis,
+            calls.isEmpty() ? "none" : calls.stream().map(LlmCallReport::model).collect(Collectors.joining(">")),
+            inputTokens,
+            outputTokens,
+            calls.isEmpty() ? 0 : frame.imageTokens(),
+            cost);
+        if (session.replay() == null) {
+            // a replay spends nothing, its calls were paid for by the recorded run
+            costLedger.record(session.id(), breakdown, calls, estimatedInput, estimatedOutput);
+        }
+        var step = decision.step();
+        runRecorder.step(session.id(), new RecordedStep(
+            step.iteration(),
+            source(decision, trace),
+            trace == null ? null : trace.prompt,
+            trace == null ? null : trace.answer,
+            calls,
+            step.thought(),
+            step.actions(),
+            step.completed(),
+            breakdown), frame.frame());
+        return decision.withBreakdown(breakdown);
+    }
+
+    private static RecordedStep.Source source(Decision decision, LlmTrace trace) {
+        if (trace == null) {
+            return decision.skipped() ? RecordedStep.Source.FAST_PATH : RecordedStep.Source.CACHE;
+        }
+        return trace.answer == null ? RecordedStep.Source.FALLBACK : RecordedStep.Source.LLM;
+    }
+
+    /**
+     * Stands in for an LLM answer that did not arrive within the step budget, the car must not wait on a stalled call.
+     */
+    private Decision fallback(AgentSession session, int iteration, PreprocessedFrame frame) {
+        log.warn("Session {} iteration {}: no LLM answer within {}, falling back to {}",
+            session.id(), iteration, agentProperties.stepBudget(), agentProperties.fallbackActions());
+        return new Decision(new AgentStep(
+            iteration,
+            "No LLM answer within the step budget of %s".formatted(agentProperties.stepBudget()),
+            "Fallback",
+            agentProperties.fallbackActions(),
+            false,
+            null,
+            null
+        ), List.of(), frame, false);
+    }
+
+    /**
+     * Stands in for an LLM answer that ran out of step budget after the car made some of its moves.
+     * The moves made become the step's plan and a truncated answer in the history, the next step builds on them.
+     */
+    private Decision cutOff(AgentSession session, int iteration, PreprocessedFrame frame, UserMessage question, List<String> made) {
+        log.warn("Session {} iteration {}: LLM answer cut off by the step budget of {} after {}",
+            session.id(), iteration, agentProperties.stepBudget(), made);
+        var answer = "{\"actions\": [%s], \"thought\": \"Answer cut off by the step budget\"}".formatted(
+            made.stream().map("\"%s\""::formatted).collect(Collectors.joining(", ")));
+        return new Decision(new AgentStep(
+            iteration,
+            "LLM answer cut off by the step budget of %s after %d moves".formatted(agentProperties.stepBudget(), made.size()),
+            "Cut off",
+            made,
+            false,
+            null,
+            null
+        ), List.of(question, new AssistantMessage(answer)), frame, false);
+    }
+
+    /**
+     * Stands in for a step the car could not take part in. Instead of asking the LLM about frames that can not be taken
+     * or moves that can not be made, the loop waits until the robot's circuit lets calls through again.
+     */
+    private Mono<Decision> robotDown(AgentSession session, int iteration, RobotCallException e) {
+        var unavailableFor = robot(session).unavailableFor();
+        log.warn("Session {} iteration {}: {}, pausing the loop for {}", session.id(), iteration, e.getMessage(), unavailableFor);
+        var decision = new Decision(new AgentStep(
+            iteration,
+            "Robot unreachable, loop paused",
+            "Paused",
+            List.of(),
+            false,
+            null,
+            e.getMessage()
+        ), List.of(), null, false);
+        return pause(session, unavailableFor).thenReturn(decision);
+    }
+
+    private UserMessage question(AgentSession session, int iteration, Frame frame, String note) {
+        var media = Media.builder()
+            .mimeType(MimeTypeUtils.IMAGE_JPEG)
+            .data(frame.jpeg())
+            .build();
+
+        var userContent = iteration == 0
+            ? """
+            The goal is: %s
+            What do you see? What should be the next move?""".formatted(session.goal())
+            : "After the previous moves, what do you see now? What's the next move?";
+        if (mosaicComposer.properties().enabled()) {
+            userContent = userContent + "\n" + mosaicComposer.describe();
+        }
+        if (session.shortfall() != null) {
+            userContent = userContent + "\n" + session.shortfall();
+        }
+        if (note != null) {
+            userContent = userContent + "\n" + note;
+        }
+
+        return new UserMessage(userContent)
+            .mutate()
+            .media(media)
+            .build();
+    }
+
+    private Flux<StreamingResponseParser.Event> ask(AgentSession session, int iteration, UserMessage question, LlmTrace trace) {
+        var messages = new ArrayList<Message>();
+        messages.add(new SystemMessage(SYSTEM_PROMPT));
+        messages.addAll(session.history());
+        messages.add(question);
+        trace.promptTokens = historyCompactor.measure(messages);
+        trace.prompt = messages.stream()
+            .map(message -> message instanceof UserMessage user && !user.getMedia().isEmpty()
+                ? message.getMessageType() + ": " + message.getText() + " [camera frame]"
+                : message.getMessageType() + ": " + message.getText())
+            .collect(Collectors.joining("\n"));
+        log.debug("Session {}: prompt of {} messages, about {} tokens", session.id(), messages.size(), trace.promptTokens);
+
+        var prompt = Prompt.builder()
+            .messages(messages)
+            .chatOptions(ChatOptions.builder()
+                .temperature(0.0)
+                .build())
+            .build();
+
+        var answer = session.replay() != null
+            ? session.replay().answer(iteration)
+            : modelCascade.ask(prompt, session.lastActions())
+                // LLM permits are shared out fairly between the cars, one busy car can not starve the others
+                .contextWrite(Context.of(LlmConcurrencyLimiter.TENANT, session.robotId()));
+        return answer.doOnNext(trace::observe);
+    }
+
+    private void commit(AgentSession session, Decision decision) {
+        decision.exchange().forEach(session::addMessage);
+        session.compactHistory(historyCompactor::compact);
+        // a step the robot was down for saw nothing
+        if (decision.observation() == null) {
+            return;
+        }
+        session.rememberScene(decision.observation().hash(), decision.step().actions(), decision.skipped());
+        // the next step builds on the moves made, a plan that stopped short did not leave the car where it would have
+        if (decision.actuation() != null) {
+            session.rememberMoves(decision.actuation().moves(), decision.actuation().shortfall());
+        }
+    }
+
+    private Decision toDecision(ResponseParsed response, int iteration, UserMessage question, PreprocessedFrame observation,
+                                LlmTrace trace) {
+        long started = System.nanoTime();
+        var validated = responseValidator.validate(response);
+        trace.parseNanos = System.nanoTime() - started;
+        if (validated.outcome() == ResponseValidator.Outcome.UNUSABLE) {
+            // not worth ending the run over, the next step gets a fresh frame and another chance
+            return new Decision(new AgentStep(
+                iteration,
+                "Unusable LLM answer, looking again",
+                "Unparsable answer",
+                List.of(),
+                false,
+                null,
+                null
+            ), List.of(), observation, false);
+        }
+        var llmResponse = validated.response();
+        log.debug("Iteration {}: Thought: {}, Actions: {}",
+            iteration, llmResponse.thought(), llmResponse.actions());
+
+        boolean isCompleted = llmResponse.actions().isEmpty();
+
+        return new Decision(new AgentStep(
+            iteration,
+            validated.outcome() == ResponseValidator.Outcome.REPAIRED ? "Image analyzed, answer repaired" : "Image captured and analyzed",
+            llmResponse.thought(),
+            llmResponse.actions(),
+            isCompleted,
+            null,
+            null
+        ), List.of(question, new AssistantMessage(validated.json())), observation, false);
+    }
+
+    private static List<RpiService.MOVE_DIRECTION> validMoves(List<String> actions) {
+        return actions.stream()
+            .map(String::trim)
+            .map(String::toUpperCase)
+            .filter(RpiService.MOVE_DIRECTION::isMoveCommand)
+            .map(RpiService.MOVE_DIRECTION::valueOf)
+            .toList();
+    }
+
+    /**
+     * Dispatches moves as they arrive, each followed by the configured spacing so the car settles before the next one.
+     * Stops at the first move the robot did not take or the vision guard vetoed, the next step then re-plans.
+     * @return the moves made, how long they kept the car busy and why they stopped short if they did
+     */
+    private Mono<Actuation> executeMovements(AgentSession session, Flux<String> actions) {
+        return executeMovements(session, actions, new AtomicReference<>(Actuation.NONE));
+    }
+
+    /**
+     * @param progress updated after every move, for callers that need to know what was made when they cancel
+     */
+    private Mono<Actuation> executeMovements(AgentSession session, Flux<String> actions, AtomicReference<Actuation> progress) {
+        return Mono.using(() -> watch(session), watch -> actions
+                .map(String::trim)
+                .map(String::toUpperCase)
+                .filter(RpiService.MOVE_DIRECTION::isMoveCommand)
+                .map(RpiService.MOVE_DIRECTION::valueOf)
+                .concatMap(move -> {
+                    var veto = watch.veto(move);
+                    if (veto != null) {
+                        return Mono.just(new Actuation(List.of(), 0, null, veto));
+                    }
+                    return move(session, move)
+                        .then(guessedMotion(session, agentProperties.moveSpacing()))
+                        .elapsed()
+                        .map(elapsed -> new Actuation(List.of(move.name()), elapsed.getT1(), null, null))
+                        .onErrorResume(RobotCallException.class, e -> Mono.just(new Actuation(List.of(), 0, e.getMessage(), null)));
+                })
+                .doOnNext(actuation -> progress.accumulateAndGet(actuation, Actuation::plus))
+                // the rest of the plan was meant for a car that made the move and a scene that stayed as it was
+                .takeUntil(Actuation::stoppedShort)
+                .reduce(Actuation.NONE, Actuation::plus),
+            VisionGuard.Watch::dispose);
+    }
+
+    /**
+     * Sends each move as soon as the previous one has physically finished and signals the last dispatched move.
+     * Stops at the first move the robot did not take or the vision guard vetoed, like {@link #executeMovements} does.
+     * @return the moves made, how long they kept the car busy and why they stopped short if they did, once the motion is over
+     */
+    private Mono<Actuation> executeMovementsBackToBack(AgentSession session, List<String> actions,
+                                                     Sinks.One<RpiService.MOVE_DIRECTION> lastMoveDispatched) {
+        var validMoves = validMoves(actions);
+        Duration motionDuration = agentProperties.motionDuration();
+        return Mono.using(() -> watch(session), watch -> Flux.fromIterable(validMoves)
+                .index()
+                .concatMap(indexedMove -> {
+                    var move = indexedMove.getT2();
+                    // a vetoed plan ends here, the motion is over and the next plan is based on a fresh frame
+                    var veto = watch.veto(move);
+                    if (veto != null) {
+                        return Mono.just(new Actuation(List.of(), 0, null, veto));
+                    }
+                    // the last move counts as dispatched when it is sent, an acknowledged move only completes with the motion
+                    return Mono.fromRunnable(() -> {
+                            if (indexedMove.getT1() == validMoves.size() - 1) {
+                                lastMoveDispatched.tryEmitValue(move);
+                            }
+                        })
+                        .then(move(session, move))
+                        .then(guessedMotion(session, motionDuration))
+                        .elapsed()
+                        .map(elapsed -> new Actuation(List.of(move.name()), elapsed.getT1(), null, null))
+                        // whether the loop pauses for the robot is up to its circuit, when the frame after the motion is taken
+                        .onErrorResume(RobotCallException.class, e -> Mono.just(new Actuation(List.of(), 0, e.getMessage(), null)));
+                })
+                .takeUntil(Actuation::stoppedShort)
+                .reduce(Actuation.NONE, Actuation::plus),
+            VisionGuard.Watch::dispose)
+            // nothing to speculate on when there was no valid move, the motion failed or was vetoed before the last move
+            .doFinally(signal -> lastMoveDispatched.tryEmitEmpty());
+    }
+
+    private Mono<Frame> latestFrame(AgentSession session, int iteration) {
+        return session.replay() != null
+            ? session.replay().frame(iteration)
+            : robot(session).ensureAvailable().then(withMosaic(session, robot(session).latestFrame()));
+    }
+
+    private Mono<Frame> frameAfter(AgentSession session, int iteration, Instant instant) {
+        return session.replay() != null
+            ? session.replay().frame(iteration)
+            : robot(session).ensureAvailable().then(withMosaic(session, robot(session).frameAfter(instant)));
+    }
+
+    /**
+     * With mosaics enabled the LLM gets several frames tiled into one image instead of the current frame alone.
+     */
+    private Mono<Frame> withMosaic(AgentSession session, Mono<Frame> current) {
+        var properties = mosaicComposer.properties();
+        if (!properties.enabled()) {
+            return current;
+        }
+        var robot = robot(session);
+        return switch (properties.source()) {
+            case RECENT -> current.flatMap(newest -> mosaicComposer.compose(
+                robot.recentFrames(newest, properties.frames(), properties.span()).stream()
+                    .map(frame -> new MosaicComposer.Tile(frame, frame == newest
+                        ? "now"
+                        : String.format(Locale.ROOT, "-%.2fs", Duration.between(frame.receivedAt(), newest.receivedAt()).toMillis() / 1000.0)))
+                    .toList()));
+            case HEAD_SWEEP -> Flux.fromIterable(properties.sweepAngles())
+                .concatMap(angle -> robot.rotateHead(properties.headChannel(), angle)
+                    .then(pause(session, properties.settle()))
+                    .then(Mono.defer(() -> robot.frameAfter(Instant.now())))
+                    .map(frame -> new MosaicComposer.Tile(frame, "head at %d degrees".formatted(angle))))
+                .collectList()
+                // the head looks where the car drives again, also after a failed sweep
+                .flatMap(tiles -> robot.rotateHead(properties.headChannel(), properties.centreAngle()).thenReturn(tiles))
+                .onErrorResume(e -> robot.rotateHead(properties.headChannel(), properties.centreAngle())
+                    .onErrorResume(ignored -> Mono.empty())
+                    .then(Mono.error(e)))
+                .flatMap(mosaicComposer::compose);
+        };
+    }
+
+    // a head sweep while the car drives would look around from wherever the car happens to be, and leave the head off centre
+    private boolean sweepsHead() {
+        var mosaic = mosaicComposer.properties();
+        return mosaic.enabled() && mosaic.source() == MosaicProperties.Source.HEAD_SWEEP;
+    }
+
+    private Mono<Void> move(AgentSession session, RpiService.MOVE_DIRECTION direction) {
+        return session.replay() != null ? Mono.empty() : robot(session).moveTheRobot(direction, agentProperties.awaitMotion());
+    }
+
+    // a replay has recorded frames only at decision points, there is nothing to watch in between
+    private VisionGuard.Watch watch(AgentSession session) {
+        return visionGuard.watch(session.replay() != null ? Flux.empty() : robot(session).frames());
+    }
+
+    private RpiService robot(AgentSession session) {
+        return robotRegistry.robot(session.robotId());
+    }
+
+    private Mono<Long> pause(AgentSession session, Duration duration) {
+        return Mono.delay(session.replay() != null ? Duration.ZERO : duration);
+    }
+
+    // an acknowledged move already lasted exactly as long as the motion, there is nothing left to guess
+    private Mono<Long> guessedMotion(AgentSession session, Duration guess) {
+        return pause(session, agentProperties.awaitMotion() ? Duration.ZERO : guess);
+    }
+}
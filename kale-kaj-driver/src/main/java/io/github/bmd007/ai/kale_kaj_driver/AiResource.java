@@ -1,233 +1,180 @@
 package io.github.bmd007.ai.kale_kaj_driver;
 
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.bmd007.ai.kale_kaj_driver.metrics.StepBreakdown;
+import io.github.bmd007.ai.kale_kaj_driver.recording.Replay;
+import io.github.bmd007.ai.kale_kaj_driver.recording.RunRecorder;
+import io.github.bmd007.ai.kale_kaj_driver.session.AgentSessionManager;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.ai.chat.client.ChatClient;
-import org.springframework.ai.chat.messages.AssistantMessage;
-import org.springframework.ai.chat.messages.Message;
-import org.springframework.ai.chat.messages.UserMessage;
-import org.springframework.ai.chat.prompt.ChatOptions;
-import org.springframework.ai.chat.prompt.Prompt;
-import org.springframework.ai.content.Media;
-import org.springframework.ai.ollama.OllamaChatModel;
-import org.springframework.ai.vertexai.gemini.VertexAiGeminiChatModel;
-import org.springframework.http.MediaType;
-import org.springframework.util.MimeTypeUtils;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.http.server.reactive.ServerHttpResponse;
 import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.core.publisher.Sinks;
 import reactor.core.scheduler.Schedulers;
 
-import java.time.Duration;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
-import java.util.Base64;
-import java.util.Collections;
 import java.util.List;
 
 @Slf4j
 @RestController
 public class AiResource {
 
-    private static final String SYSTEM_PROMPT = """
-        You are controlling a robotic car with a front-facing camera.
-        
-        Your goal: [will be defined per request]
-        
-        You will receive images from the car's camera showing the first-person view.
-        Based on what you see, decide the next move(s) to achieve the goal.
-        
-        RULES:
-        - Respond ONLY with valid JSON in this exact format:
-          {
-            "thought": "your analysis of what you see and why you're taking these actions",
-            "actions": ["FORWARD", "LEFT", "FORWARD"]
-          }
-        - Available actions: FORWARD, BACKWARD, LEFT, RIGHT
-        - When you've achieved the goal, use an empty actions array: {"thought": "goal achieved", "actions": []}
-        - Do NOT use empty actions array until the goal is fully achieved
-        - If you can't see clearly or need more information, make your best guess based on what's visible
-        - Be decisive - analyze the image and commit to a direction
-        - Your response must be valid JSON only, no additional text
-        
-        Remember: Only and only and only respond with valid JSON, nothing else.
-        The only acceptable response format is JSON, as exemplified below.
-        Don't forget that your json response should start with { and end with }.
-        
-        Example valid responses:
-        - {"thought": "I see an open path ahead", "actions": ["FORWARD"]}
-        - {"thought": "Need to turn left to avoid obstacle", "actions": ["LEFT", "LEFT", "FORWARD"]}
-        - {"thought": "Approaching the target on the right", "actions": ["FORWARD", "RIGHT", "FORWARD"]}
-        - {"thought": "Goal achieved - reached destination", "actions": []}
-        """;
-    private final Sinks.Many<byte[]> imageSink = Sinks.many().multicast()
-        .onBackpressureBuffer(1, false);
-
-    private static final int MAX_ITERATIONS = 50;
-    private final RpiService rpiService;
-    private final ChatClient ollamaClient;
+    private static final DataBufferFactory BUFFER_FACTORY = DefaultDataBufferFactory.sharedInstance;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    public static final String SESSION_ID_HEADER = "X-Session-Id";
+
+    private final AgentRunner agentRunner;
+    private final AgentSessionManager sessionManager;
     private final ObjectMapper objectMapper;
+    private final RunRecorder runRecorder;
+    private final RobotRegistry robotRegistry;
 
-    public AiResource(RpiService rpiService,
-                      OllamaChatModel ollamaChatModel,
-                      ObjectMapper objectMapper,
-                      VertexAiGeminiChatModel vertexAiGeminiChatModel) {
-        this.rpiService = rpiService;
-        this.ollamaClient = ChatClient.create(vertexAiGeminiChatModel)
-            .mutate()
-            .defaultSystem(SYSTEM_PROMPT)
-            .build();
+    public AiResource(AgentRunner agentRunner, AgentSessionManager sessionManager, ObjectMapper objectMapper,
+                      RunRecorder runRecorder, RobotRegistry robotRegistry) {
+        this.agentRunner = agentRunner;
+        this.sessionManager = sessionManager;
         this.objectMapper = objectMapper;
+        this.runRecorder = runRecorder;
+        this.robotRegistry = robotRegistry;
     }
 
-    public record ChatRequest(String goal) {
+    /**
+     * @param pipelined overlap LLM inference with motion instead of strictly alternating them
+     * @param robot     id of the car to drive, the default robot when null
+     */
+    public record ChatRequest(String goal, boolean pipelined, String robot) {
     }
 
+    /**
+     * @param breakdown where the time and money of the step went
+     * @param failure   why the car could not see or move in this step, null when the robot did its part
+     */
     public record AgentStep(
         int iteration,
         String observation,
         String thought,
         List<String> actions,
-        boolean completed) {
+        boolean completed,
+        StepBreakdown breakdown,
+        String failure) {
 
         public String printable() {
             return thought + " =====> Actions: " + actions;
         }
+
+        public AgentStep withBreakdown(StepBreakdown breakdown) {
+            return new AgentStep(iteration, observation, thought, actions, completed, breakdown, failure);
+        }
+
+        public AgentStep withObservation(String observation) {
+            return new AgentStep(iteration, observation, thought, actions, completed, breakdown, failure);
+        }
+
+        public AgentStep withFailure(String failure) {
+            return new AgentStep(iteration, observation, thought, actions, completed, breakdown, failure);
+        }
     }
 
+    @JsonPropertyOrder({"actions", "thought"})
     public record LlmResponse(String thought, List<String> actions) {
     }
 
-    @GetMapping(path = "/llm-image-stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public Flux<String> llmImageStream() {
-        return imageSink.asFlux()
-            .map(Base64.getEncoder()::encodeToString);
+    // binary multipart, every part carries the frame metadata in its headers and the raw JPEG as body
+    @GetMapping(path = "/llm-image-stream", produces = "multipart/x-mixed-replace; boundary=frame")
+    public Flux<DataBuffer> llmImageStream(@RequestParam(required = false) String session) {
+        return sessionManager.frames(session)
+            .concatMapIterable(frame -> List.of(
+                BUFFER_FACTORY.wrap(frame.partHeaders()),
+                BUFFER_FACTORY.wrap(frame.jpeg()),
+                BUFFER_FACTORY.wrap(CRLF)
+            ));
     }
 
     @PostMapping(path = "/agent", produces = "text/event-stream")
-    public Flux<String> agent(@RequestBody AiResource.ChatRequest request) {
-        var conversationHistory = new ArrayList<Message>();
-        return Flux.range(0, MAX_ITERATIONS)
-            .concatMap(iteration -> executeAgentStep(request.goal(), conversationHistory, iteration))
-            .takeUntil(AgentStep::completed)
-            .map(AgentStep::printable)
-            .doOnError(e -> log.error("Agent error", e));
-    }
-
-    private Mono<AgentStep> executeAgentStep(String goal, List<Message> history, int iteration) {
-        return captureAndAnalyze(goal, history, iteration)
-            .flatMap(step -> {
-                if (!step.completed() && !step.actions().isEmpty()) {
-                    return executeMovements(step.actions())
-                        .thenReturn(step);
-                }
-                return Mono.just(step);
-            });
+    public Flux<ServerSentEvent<String>> agent(@RequestBody AiResource.ChatRequest request, ServerHttpResponse response) {
+        var robot = robotRegistry.find(request.robot())
+            .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown robot " + request.robot()));
+        if (!robotRegistry.isUp(robot.id())) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Robot " + robot.id() + " is not reachable");
+        }
+        return Flux.using(
+            () -> sessionManager.open(request.goal(), robot.id()),
+            session -> {
+                response.getHeaders().add(SESSION_ID_HEADER, session.id());
+                var steps = agentRunner.run(session, request.pipelined())
+                    .flatMapIterable(step -> events(session.id(), step))
+                    .doOnError(e -> log.error("Agent error in session {}", session.id(), e));
+                // the comment flushes the headers, so the dashboard learns the session id before the first LLM answer
+                return Flux.concat(Flux.just(ServerSentEvent.<String>builder().comment("session " + session.id()).build()), steps);
+            },
+            // completion, error and client disconnect all end up here, the disconnect also cancels the in-flight LLM call
+            sessionManager::close
+        );
     }
 
-    private Mono<AgentStep> captureAndAnalyze(String goal, List<Message> history, int iteration) {
-        return rpiService.image()
-            .doOnNext(imageSink::tryEmitNext)
+    /**
+     * Runs a recorded session through the loop again, the recorded frames and answers in place of the car and the LLM,
+     * as fast as the loop goes. Emits the replayed steps like {@code /agent} and ends with a {@code replay-summary} event
+     * listing the steps that decided differently from the recording.
+     */
+    @PostMapping(path = "/agent/replay/{sessionId}", produces = "text/event-stream")
+    public Flux<ServerSentEvent<String>> replay(@PathVariable String sessionId, ServerHttpResponse response) {
+        return Mono.fromCallable(() -> runRecorder.load(sessionId))
             .subscribeOn(Schedulers.boundedElastic())
-            .map(imageBytes ->
-                Media.builder()
-                    .mimeType(MimeTypeUtils.IMAGE_JPEG)
-                    .data(imageBytes)
-                    .build()
-            )
-            .flatMap(media -> {
-                var userContent = iteration == 0
-                    ? """
-                    The goal is: %s
-                    What do you see? What should be the next move?""".formatted(goal)
-                    : "After the previous moves, what do you see now? What's the next move?";
-
-                var userMsg = new UserMessage(userContent)
-                    .mutate()
-                    .media(media)
-                    .build();
-
-                history.add(userMsg);
-
-                var prompt = Prompt.builder()
-                    .messages(history)
-                    .chatOptions(ChatOptions.builder()
-                        .temperature(0.0)
-                        .build())
-                    .build();
-
-                return ollamaClient.prompt(prompt)
-                    .stream()
-                    .content()
-                    .collectList()
-                    .map(list -> String.join("", list))
-                    .flatMap(response -> parseJsonResponse(response, iteration, history));
-            });
-    }
-
-    private Mono<AgentStep> parseJsonResponse(String response, int iteration, List<Message> history) {
-        return Mono.fromCallable(() -> {
-            try {
-                String jsonStr = response.trim();
-                int jsonStart = jsonStr.indexOf("{");
-                int jsonEnd = jsonStr.lastIndexOf("}");
-
-                if (jsonStart >= 0 && jsonEnd > jsonStart) {
-                    jsonStr = jsonStr.substring(jsonStart, jsonEnd + 1);
-                }
-
-                var llmResponse = objectMapper.readValue(jsonStr, LlmResponse.class);
-
-                log.debug("Iteration {}: Thought: {}, Actions: {}",
-                    iteration, llmResponse.thought(), llmResponse.actions());
-
-                history.add(new AssistantMessage(jsonStr));
-
-                // Keep history manageable (last 6 messages = 3 exchanges)
-                if (history.size() > 6) {
-                    history.subList(0, history.size() - 6).clear();
-                }
-
-                boolean isCompleted = llmResponse.actions().isEmpty();
-
-                return new AgentStep(
-                    iteration,
-                    "Image captured and analyzed",
-                    llmResponse.thought(),
-                    llmResponse.actions(),
-                    isCompleted
-                );
-            } catch (Exception e) {
-                log.error("Failed to parse JSON response: {}", response, e);
-                return new AgentStep(
-                    iteration,
-                    "Failed to parse JSON response",
-                    "Parse error",
-                    Collections.emptyList(),
-                    true
-                );
-            }
-        });
+            .onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, "Not a session id: " + sessionId))
+            .onErrorMap(NoSuchFileException.class, e -> new ResponseStatusException(HttpStatus.NOT_FOUND, "No recording of session " + sessionId))
+            .flatMapMany(recording -> Flux.using(
+                () -> sessionManager.openReplay(new Replay(recording)),
+                session -> {
+                    response.getHeaders().add(SESSION_ID_HEADER, session.id());
+                    var steps = agentRunner.run(session, recording.pipelined())
+                        .flatMapIterable(step -> events(session.id(), step));
+                    return Flux.concat(steps, Mono.fromCallable(() -> ServerSentEvent.builder(objectMapper.writeValueAsString(session.replay().summary()))
+                        .id(session.id())
+                        .event("replay-summary")
+                        .build()));
+                },
+                sessionManager::close
+            ));
     }
 
-    private Mono<List<RpiService.MOVE_DIRECTION>> executeMovements(List<String> actions) {
-        var validMoves = actions.stream()
-            .map(String::trim)
-            .map(String::toUpperCase)
-            .filter(RpiService.MOVE_DIRECTION::isMoveCommand)
-            .map(RpiService.MOVE_DIRECTION::valueOf)
-            .toList();
-
-        if (validMoves.isEmpty()) {
-            return Mono.empty();
+    // the step for people, then what kept the robot from doing its part and the breakdown as JSON, for the dashboard
+    // and anyone tuning the loop
+    private List<ServerSentEvent<String>> events(String sessionId, AgentStep step) {
+        var events = new ArrayList<ServerSentEvent<String>>(3);
+        events.add(ServerSentEvent.builder(step.printable()).id(sessionId).build());
+        if (step.failure() != null) {
+            events.add(ServerSentEvent.builder(step.failure())
+                .id(sessionId)
+                .event("robot-failure")
+                .build());
         }
-
-        return Flux.fromIterable(validMoves)
-            .delayElements(Duration.ofMillis(1500))
-            .delayUntil(rpiService::moveTheRobot)
-            .collectList();
+        if (step.breakdown() == null) {
+            return events;
+        }
+        try {
+            events.add(ServerSentEvent.builder(objectMapper.writeValueAsString(step.breakdown()))
+                .id(sessionId)
+                .event("step-breakdown")
+                .build());
+        } catch (JsonProcessingException e) {
+            log.warn("Could not serialize the breakdown of step {} in session {}", step.iteration(), sessionId, e);
+        }
+        return events;
     }
 }
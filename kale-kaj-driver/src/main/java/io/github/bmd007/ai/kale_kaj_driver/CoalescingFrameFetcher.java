@@ -0,0 +1,70 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.function.Supplier;
+
+/**
+ * Single flight for capture-image. Callers asking for the current frame while a fetch is in flight join it
+ * instead of sending their own request, and retries happen once for the whole group.
+ * The result is served to later callers for as long as it is fresh: within the freshness window, or for as long
+ * as the video stream has not delivered a newer sequence number than the captured frame.
+ */
+@Slf4j
+final class CoalescingFrameFetcher {
+
+    private final String robotId;
+    private final Mono<Frame> fetch;
+    private final Duration freshness;
+    // the newest frame of the video stream, null when the stream is not delivering
+    private final Supplier<Frame> streamed;
+    private Mono<Frame> inFlight;
+    private Frame fetched;
+
+    CoalescingFrameFetcher(String robotId, Mono<Frame> fetch, Duration freshness, Supplier<Frame> streamed) {
+        this.robotId = robotId;
+        this.fetch = fetch;
+        this.freshness = freshness;
+        this.streamed = streamed;
+    }
+
+    Mono<Frame> fetch() {
+        return Mono.defer(() -> {
+            synchronized (this) {
+                if (fetched != null && isCurrent(fetched)) {
+                    return Mono.just(fetched);
+                }
+                if (inFlight != null) {
+                    log.debug("Joining the capture-image call in flight to robot {}", robotId);
+                    return inFlight;
+                }
+                // cached, so every caller of the group gets the one result, error included
+                Mono<Frame> flight = fetch
+                    .doOnNext(this::remember)
+                    .doFinally(signal -> landed())
+                    .cache();
+                inFlight = flight;
+                return flight;
+            }
+        });
+    }
+
+    private boolean isCurrent(Frame frame) {
+        if (frame.age().compareTo(freshness) < 0) {
+            return true;
+        }
+        Frame latest = streamed.get();
+        // the camera has not produced anything newer since the capture
+        return frame.sequence() >= 0 && latest != null && latest.sequence() <= frame.sequence();
+    }
+
+    private synchronized void remember(Frame frame) {
+        fetched = frame;
+    }
+
+    private synchronized void landed() {
+        inFlight = null;
+    }
+}
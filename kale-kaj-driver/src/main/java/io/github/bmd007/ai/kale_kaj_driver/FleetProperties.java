@@ -0,0 +1,51 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * @param robots                  the cars this driver controls, by id, e.g. {@code default: {base-url: http://192.168.1.165:8080}}
+ * @param defaultRobot            the car of sessions that name none
+ * @param maxConnections          per robot, one is held by the video stream for as long as the driver runs
+ * @param maxIdleTime             an idle kept-alive connection to a robot is closed after this long
+ * @param connectTimeout          to a robot on the LAN, anything slower means it is off or out of range
+ * @param healthCheckInterval     how often every robot's health endpoint is polled
+ * @param healthCheckTimeout      a health check taking longer counts as failed
+ * @param unhealthyAfter          consecutive failed health checks before a robot is considered down
+ * @param maxFrameSize            the largest frame or response body buffered from a robot, a 640x480 JPEG is 30 to 80KB
+ * @param captureFreshness        a captured image is handed to every caller asking within this long, instead of capturing again
+ * @param captureTimeout          deadline of one capture-image attempt
+ * @param moveTimeout             deadline of one move command, up to the end of the motion when the move is awaited
+ * @param retries                 of a failed robot call, with exponential backoff and jitter; moves only when they never reached the car
+ * @param retryBackoff            wait before the first retry, doubled for every further one
+ * @param maxRetryBackoff         the longest wait between retries
+ * @param circuitFailureThreshold failed calls in a row after which the robot's circuit opens and the agent loop pauses
+ * @param circuitOpenFor          calls fail right away for this long once the circuit is open, then one probe call is let through
+ */
+@ConfigurationProperties("kale-kaj-driver.fleet")
+public record FleetProperties(
+    @DefaultValue Map<String, Robot> robots,
+    @DefaultValue("default") String defaultRobot,
+    @DefaultValue("4") int maxConnections,
+    @DefaultValue("30s") Duration maxIdleTime,
+    @DefaultValue("2s") Duration connectTimeout,
+    @DefaultValue("5s") Duration healthCheckInterval,
+    @DefaultValue("2s") Duration healthCheckTimeout,
+    @DefaultValue("3") int unhealthyAfter,
+    @DefaultValue("1MB") DataSize maxFrameSize,
+    @DefaultValue("200ms") Duration captureFreshness,
+    @DefaultValue("2s") Duration captureTimeout,
+    @DefaultValue("2s") Duration moveTimeout,
+    @DefaultValue("2") int retries,
+    @DefaultValue("100ms") Duration retryBackoff,
+    @DefaultValue("1s") Duration maxRetryBackoff,
+    @DefaultValue("3") int circuitFailureThreshold,
+    @DefaultValue("5s") Duration circuitOpenFor) {
+
+    public record Robot(String baseUrl) {
+    }
+}
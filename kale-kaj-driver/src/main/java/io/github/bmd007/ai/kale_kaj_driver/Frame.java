@@ -0,0 +1,18 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * A complete JPEG frame from the robot camera.
+ * @param sequence frame sequence number assigned by the robot, or a local counter when the robot does not send one
+ * @param receivedAt when the last byte of the frame arrived at the driver
+ * @param jpeg       shared by everything that handles the frame, from the cache and the recorder to the dashboard
+ *                   and the LLM request; never modified once the frame exists, so nobody copies it
+ */
+public record Frame(long sequence, Instant receivedAt, byte[] jpeg) {
+
+    public Duration age() {
+        return Duration.between(receivedAt, Instant.now());
+    }
+}
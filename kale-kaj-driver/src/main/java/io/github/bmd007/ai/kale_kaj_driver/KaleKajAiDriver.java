@@ -3,8 +3,10 @@ package io.github.bmd007.ai.kale_kaj_driver;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class KaleKajAiDriver {
     static void main(String[] args) {
         SpringApplication app = new SpringApplication(KaleKajAiDriver.class);
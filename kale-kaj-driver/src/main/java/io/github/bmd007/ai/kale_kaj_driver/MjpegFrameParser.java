@@ -0,0 +1,160 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import org.springframework.core.io.buffer.DataBuffer;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental parser for the robot's {@code multipart/x-mixed-replace} MJPEG stream.
+ * Network chunks are fed in as they arrive, complete frames come out.
+ * Part bodies are delimited by their Content-Length header when present, otherwise by the JPEG end of image marker.
+ * With a Content-Length the frame's array is allocated up front and the body is read from the network buffers
+ * straight into it, that is the one copy a frame needs to outlive the pooled buffers it arrived in.
+ * Not thread safe, use one instance per upstream connection.
+ */
+class MjpegFrameParser {
+
+    private static final byte[] HEADER_END = "\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private static final String CONTENT_LENGTH = "content-length:";
+    private static final String FRAME_SEQUENCE = "x-frame-sequence:";
+
+    // anything bigger than a frame can be means we lost track of the stream
+    private final int maxFrameBytes;
+    // part headers, and whole parts when the robot sends no Content-Length
+    private byte[] buffer = new byte[16 * 1024];
+    private int length;
+    private long localSequence;
+    // the frame being filled from the network, null while looking for the next part's headers
+    private byte[] body;
+    private int bodyFilled;
+    private long bodySequence;
+
+    MjpegFrameParser(int maxFrameBytes) {
+        this.maxFrameBytes = maxFrameBytes;
+    }
+
+    List<Frame> feed(DataBuffer chunk) {
+        List<Frame> frames = new ArrayList<>(1);
+        while (chunk.readableByteCount() > 0) {
+            if (body != null) {
+                int read = Math.min(chunk.readableByteCount(), body.length - bodyFilled);
+                chunk.read(body, bodyFilled, read);
+                bodyFilled += read;
+                if (bodyFilled == body.length) {
+                    frames.add(new Frame(bodySequence, Instant.now(), body));
+                    body = null;
+                }
+                continue;
+            }
+            int readable = chunk.readableByteCount();
+            ensureCapacity(length + readable);
+            chunk.read(buffer, length, readable);
+            length += readable;
+            parseBuffered(frames);
+        }
+        return frames;
+    }
+
+    private void parseBuffered(List<Frame> frames) {
+        int consumed = 0;
+        while (true) {
+            int headerEnd = indexOf(HEADER_END, consumed);
+            if (headerEnd < 0) {
+                break;
+            }
+            int bodyStart = headerEnd + HEADER_END.length;
+            String headers = new String(buffer, consumed, headerEnd - consumed, StandardCharsets.ISO_8859_1);
+            long contentLength = headerValue(headers, CONTENT_LENGTH);
+            if (contentLength > maxFrameBytes) {
+                consumed = length;
+                break;
+            }
+            if (contentLength >= 0) {
+                long sequence = headerValue(headers, FRAME_SEQUENCE);
+                byte[] jpeg = new byte[(int) contentLength];
+                // only the start of the body that came with the headers goes through the buffer
+                int buffered = Math.min(length - bodyStart, jpeg.length);
+                System.arraycopy(buffer, bodyStart, jpeg, 0, buffered);
+                consumed = bodyStart + buffered;
+                long frameSequence = sequence >= 0 ? sequence : ++localSequence;
+                if (buffered == jpeg.length) {
+                    frames.add(new Frame(frameSequence, Instant.now(), jpeg));
+                    continue;
+                }
+                body = jpeg;
+                bodyFilled = buffered;
+                bodySequence = frameSequence;
+                break;
+            }
+            int endOfImage = indexOfEndOfImage(bodyStart);
+            if (endOfImage < 0) {
+                break;
+            }
+            int bodyEnd = endOfImage + 2;
+            long sequence = headerValue(headers, FRAME_SEQUENCE);
+            frames.add(new Frame(
+                sequence >= 0 ? sequence : ++localSequence,
+                Instant.now(),
+                Arrays.copyOfRange(buffer, bodyStart, bodyEnd)));
+            consumed = bodyEnd;
+        }
+
+        compact(consumed);
+        if (length > maxFrameBytes) {
+            length = 0;
+        }
+    }
+
+    private static long headerValue(String headers, String name) {
+        for (String line : headers.split("\r\n")) {
+            if (line.toLowerCase().startsWith(name)) {
+                try {
+                    return Long.parseLong(line.substring(name.length()).trim());
+                } catch (NumberFormatException e) {
+                    return -1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (buffer[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int indexOfEndOfImage(int from) {
+        for (int i = from; i < length - 1; i++) {
+            if (buffer[i] == (byte) 0xFF && buffer[i + 1] == (byte) 0xD9) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void compact(int consumed) {
+        if (consumed == 0) {
+            return;
+        }
+        System.arraycopy(buffer, consumed, buffer, 0, length - consumed);
+        length -= consumed;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+/**
+ * A call to a robot failed for good: its deadline passed, its retries ran out or the robot's circuit is open.
+ */
+public class RobotCallException extends RuntimeException {
+
+    private final String robotId;
+
+    public RobotCallException(String robotId, String message, Throwable cause) {
+        super("Robot %s: %s".formatted(robotId, message), cause);
+        this.robotId = robotId;
+    }
+
+    public String robotId() {
+        return robotId;
+    }
+}
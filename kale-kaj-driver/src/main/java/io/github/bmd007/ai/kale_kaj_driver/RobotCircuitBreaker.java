@@ -0,0 +1,128 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Predicate;
+
+/**
+ * Stops calling a robot that keeps failing. After {@code failureThreshold} failed calls in a row the circuit opens
+ * and calls fail right away for {@code openFor}, then a single probe call is let through: its success closes the circuit,
+ * its failure opens it again. A call counts once, however many retries it took.
+ * Only failures that tell something about the robot count, an answer the caller got wrong such as a 4xx proves it is up.
+ */
+@Slf4j
+final class RobotCircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    // while the probe is out callers check back this often, the probe ends within its call's deadline
+    private static final Duration PROBE_POLL = Duration.ofMillis(500);
+
+    private final String robotId;
+    private final int failureThreshold;
+    private final Duration openFor;
+    private State state = State.CLOSED;
+    private int failures;
+    private Instant openUntil = Instant.MIN;
+
+    RobotCircuitBreaker(String robotId, int failureThreshold, Duration openFor) {
+        this.robotId = robotId;
+        this.failureThreshold = failureThreshold;
+        this.openFor = openFor;
+    }
+
+    /**
+     * @param robotFailure which errors count as a failure of the robot, any other error is an answer from it
+     */
+    <T> Mono<T> protect(String call, Mono<T> attempt, Predicate<Throwable> robotFailure) {
+        return Mono.defer(() -> {
+            if (!tryAcquire()) {
+                return Mono.error(new RobotCallException(robotId, "%s not attempted, circuit %s, retry in %dms"
+                    .formatted(call, state(), retryIn().toMillis()), null));
+            }
+            return attempt
+                .doOnSuccess(ignored -> succeeded())
+                .doOnError(e -> {
+                    if (robotFailure.test(e)) {
+                        failed(call, e);
+                    } else {
+                        succeeded();
+                    }
+                })
+                .doFinally(signal -> {
+                    if (signal == SignalType.CANCEL) {
+                        abandoned();
+                    }
+                });
+        });
+    }
+
+    /**
+     * @return zero when calls go through, otherwise how long until the next probe or, while one is out, until it is worth
+     * checking whether it closed the circuit
+     */
+    synchronized Duration retryIn() {
+        if (state == State.CLOSED) {
+            return Duration.ZERO;
+        }
+        if (state == State.HALF_OPEN) {
+            return PROBE_POLL;
+        }
+        var remaining = Duration.between(Instant.now(), openUntil);
+        return remaining.isNegative() ? Duration.ZERO : remaining;
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    private synchronized boolean tryAcquire() {
+        return switch (state) {
+            case CLOSED -> true;
+            case OPEN -> {
+                if (Instant.now().isBefore(openUntil)) {
+                    yield false;
+                }
+                state = State.HALF_OPEN;
+                yield true;
+            }
+            // the probe is still out
+            case HALF_OPEN -> false;
+        };
+    }
+
+    private synchronized void succeeded() {
+        if (state != State.CLOSED) {
+            log.info("Robot {} answers again, circuit closed", robotId);
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    private synchronized void failed(String call, Throwable e) {
+        failures++;
+        if (state == State.HALF_OPEN || failures >= failureThreshold) {
+            if (state != State.OPEN) {
+                log.warn("Robot {}: circuit open for {} after {} failed calls, last {} failed with {}",
+                    robotId, openFor, failures, call, e.toString());
+            }
+            state = State.OPEN;
+            openUntil = Instant.now().plus(openFor);
+        }
+    }
+
+    // a cancelled probe proves nothing, the next call probes again
+    private synchronized void abandoned() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.netty.channel.ChannelOption;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The cars this driver controls. Every robot gets its own connection pool, so a slow or unreachable car
+ * can not hold up the connections of the others, and its health endpoint is polled in the background.
+ */
+@Slf4j
+@Component
+public class RobotRegistry {
+
+    private final FleetProperties properties;
+    private final Map<String, RpiService> robots = new LinkedHashMap<>();
+    private final Map<String, ConnectionProvider> pools = new LinkedHashMap<>();
+    private final Map<String, Health> health = new ConcurrentHashMap<>();
+    private Disposable healthChecks;
+
+    /**
+     * @param up          false once the robot failed {@code unhealthy-after} health checks in a row
+     * @param lastChecked null before the first health check completed
+     * @param circuit     state of the circuit breaker in front of the robot's calls, see {@link RpiService}
+     */
+    public record Health(String robot, boolean up, int consecutiveFailures, Instant lastChecked, String lastError,
+                         Duration frameAge, String circuit) {
+    }
+
+    public RobotRegistry(FleetProperties properties, WebClient.Builder webClientBuilder, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        if (properties.robots().isEmpty()) {
+            throw new IllegalStateException("No robots configured, add one under kale-kaj-driver.fleet.robots");
+        }
+        properties.robots().forEach((id, robot) -> {
+            var pool = ConnectionProvider.builder("robot-" + id)
+                .maxConnections(properties.maxConnections())
+                .maxIdleTime(properties.maxIdleTime())
+                .pendingAcquireTimeout(properties.connectTimeout())
+                .build();
+            var httpClient = HttpClient.create(pool)
+                .keepAlive(true)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) properties.connectTimeout().toMillis());
+            var client = webClientBuilder.clone()
+                .baseUrl(robot.baseUrl())
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .exchangeStrategies(ExchangeStrategies.builder()
+                    .codecs(codecs -> codecs.defaultCodecs()
+                        .maxInMemorySize((int) properties.maxFrameSize().toBytes())
+                    )
+                    .build()
+                )
+                .build();
+            pools.put(id, pool);
+            robots.put(id, new RpiService(id, client, properties));
+            // optimistic until the first check says otherwise, the car may well be up
+            health.put(id, new Health(id, true, 0, null, null, null, null));
+            Gauge.builder("kale_kaj_driver.robot.up", health, checks -> checks.get(id).up() ? 1 : 0)
+                .tag("robot", id)
+                .register(meterRegistry);
+            log.info("Registered robot {} at {}", id, robot.baseUrl());
+        });
+    }
+
+    /**
+     * @param id null for the default robot
+     */
+    public Optional<RpiService> find(String id) {
+        return Optional.ofNullable(robots.get(id == null ? properties.defaultRobot() : id));
+    }
+
+    public RpiService robot(String id) {
+        return find(id).orElseThrow(() -> new IllegalArgumentException("Unknown robot " + id + ", known are " + robots.keySet()));
+    }
+
+    public boolean isUp(String id) {
+        var robotHealth = health.get(id == null ? properties.defaultRobot() : id);
+        return robotHealth != null && robotHealth.up();
+    }
+
+    public Collection<Health> health() {
+        return robots.keySet().stream()
+            .map(id -> {
+                var checked = health.get(id);
+                return new Health(id, checked.up(), checked.consecutiveFailures(), checked.lastChecked(), checked.lastError(),
+                    robots.get(id).frameAge(), robots.get(id).circuit());
+            })
+            .toList();
+    }
+
+    public List<String> ids() {
+        return List.copyOf(robots.keySet());
+    }
+
+    @PostConstruct
+    void startHealthChecks() {
+        healthChecks = Flux.interval(Duration.ZERO, properties.healthCheckInterval())
+            .onBackpressureDrop()
+            .concatMap(tick -> Flux.fromIterable(robots.values())
+                .flatMap(this::check))
+            .subscribe();
+    }
+
+    private Mono<Void> check(RpiService robot) {
+        return robot.healthCheck()
+            .timeout(properties.healthCheckTimeout())
+            .then(Mono.fromRunnable(() -> health.compute(robot.id(), (id, previous) -> {
+                if (previous != null && !previous.up()) {
+                    log.info("Robot {} is up again", id);
+                }
+                return new Health(id, true, 0, Instant.now(), null, null, null);
+            })))
+            .onErrorResume(e -> Mono.fromRunnable(() -> health.compute(robot.id(), (id, previous) -> {
+                int failures = previous == null ? 1 : previous.consecutiveFailures() + 1;
+                boolean up = failures < properties.unhealthyAfter();
+                if (!up && (previous == null || previous.up())) {
+                    log.warn("Robot {} is down after {} failed health checks: {}", id, failures, e.toString());
+                }
+                return new Health(id, up, failures, Instant.now(), e.toString(), null, null);
+            })))
+            .then();
+    }
+
+    @PreDestroy
+    void shutdown() {
+        if (healthChecks != null) {
+            healthChecks.dispose();
+        }
+        pools.values().forEach(ConnectionProvider::dispose);
+    }
+}
@@ -0,0 +1,21 @@
+package io.github.bmd007.ai.kale_kaj_driver;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Collection;
+
+@RestController
+public class RobotResource {
+
+    private final RobotRegistry robotRegistry;
+
+    public RobotResource(RobotRegistry robotRegistry) {
+        this.robotRegistry = robotRegistry;
+    }
+
+    @GetMapping("/robots")
+    public Collection<RobotRegistry.Health> robots() {
+        return robotRegistry.health();
+    }
+}
@@ -3,56 +3,271 @@ package io.github.bmd007.ai.kale_kaj_driver;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.ai.tool.annotation.Tool;
-import org.springframework.stereotype.Service;
-import org.springframework.web.reactive.function.client.ExchangeStrategies;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
 
-import java.util.Base64;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Predicate;
 
+/**
+ * One car of the fleet, created by the {@link RobotRegistry} with a client that has its own connection pool.
+ * Every call has a deadline, retries transient failures with jittered exponential backoff and goes through the robot's
+ * circuit breaker; a call that fails for good ends in a {@link RobotCallException}.
+ */
 @Slf4j
-@Service
 public class RpiService {
 
+    public static final String FRAME_SEQUENCE_HEADER = "X-Frame-Sequence";
+    // older than this and the video stream is considered stalled
+    private static final Duration MAX_FRAME_AGE = Duration.ofSeconds(1);
+    private static final Duration NEXT_FRAME_TIMEOUT = Duration.ofSeconds(2);
+    // about two seconds of video at 30fps, enough for a mosaic of the last second
+    private static final int RECENT_FRAMES = 64;
+
+    private final String id;
     private final WebClient client;
+    private final FleetProperties properties;
+    private final RobotCircuitBreaker breaker;
+    private final AtomicReference<Frame> latestFrame = new AtomicReference<>();
+    private final Deque<Frame> recentFrames = new ArrayDeque<>(RECENT_FRAMES);
+    private final AtomicBoolean connected = new AtomicBoolean();
+    private final Flux<Frame> frames;
+    private final CoalescingFrameFetcher captures;
 
-    public RpiService(WebClient.Builder webClientBuilder) {
-        this.client = webClientBuilder
-            .baseUrl("http://192.168.1.165:8080")
-            .exchangeStrategies(ExchangeStrategies.builder()
-                .codecs(codecs -> codecs.defaultCodecs()
-                    .maxInMemorySize(1024 * 1024 * 100) // 10 MB
-                )
-                .build()
-            )
-            .build();
-    }
-
-    public Mono<Void> moveTheRobot(MOVE_DIRECTION direction) {
-        return client.post()
-            .uri("/move?command=" + direction.name())
-            .retrieve()
-            .bodyToMono(Void.class);
+    RpiService(String id, WebClient client, FleetProperties properties) {
+        this.id = id;
+        this.client = client;
+        this.properties = properties;
+        this.breaker = new RobotCircuitBreaker(id, properties.circuitFailureThreshold(), properties.circuitOpenFor());
+        int maxFrameBytes = (int) properties.maxFrameSize().toBytes();
+        this.frames = Flux.defer(() -> {
+                var parser = new MjpegFrameParser(maxFrameBytes);
+                return client.get()
+                    .uri("/v3/video-stream")
+                    .retrieve()
+                    .bodyToFlux(DataBuffer.class)
+                    .concatMapIterable(chunk -> {
+                        try {
+                            return parser.feed(chunk);
+                        } finally {
+                            DataBufferUtils.release(chunk);
+                        }
+                    });
+            })
+            .doOnNext(latestFrame::set)
+            .doOnNext(this::keepRecent)
+            .doOnError(e -> log.warn("Video stream from robot {} broke, reconnecting: {}", id, e.getMessage()))
+            .repeatWhen(completed -> completed.delayElements(Duration.ofSeconds(1)))
+            .retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofMillis(500)).maxBackoff(Duration.ofSeconds(5)))
+            .publish()
+            .autoConnect();
+        this.captures = new CoalescingFrameFetcher(id, captureFrame(), properties.captureFreshness(), this::streamedFrame);
+    }
+
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Retried only when the command never reached the car, a move that timed out may well have been made.
+     * @param awaitMotion complete once the robot reports the motors stopped, rather than once it received the move
+     */
+    public Mono<Void> moveTheRobot(MOVE_DIRECTION direction, boolean awaitMotion) {
+        return call("move " + direction,
+            client.post()
+                .uri("/move?command=" + direction.name() + (awaitMotion ? "&await=true" : ""))
+                .retrieve()
+                .bodyToMono(Void.class),
+            properties.moveTimeout(),
+            RpiService::neverReachedTheRobot);
+    }
+
+    /**
+     * @return zero while calls go through, otherwise how long the circuit stays open
+     */
+    public Duration unavailableFor() {
+        return breaker.retryIn();
+    }
+
+    public String circuit() {
+        return breaker.state().name();
+    }
+
+    /**
+     * Fails right away while the circuit is open, nothing is worth doing with a car that can not be reached.
+     */
+    public Mono<Void> ensureAvailable() {
+        return Mono.defer(() -> {
+            var remaining = breaker.retryIn();
+            return remaining.isZero()
+                ? Mono.empty()
+                : Mono.error(new RobotCallException(id, "circuit %s, retry in %dms".formatted(breaker.state(), remaining.toMillis()), null));
+        });
     }
 
-    public Flux<String> videoFeed() {
+    /**
+     * Complete frames of the single long-lived video stream connection to the robot, shared by all subscribers.
+     * Slow subscribers skip frames instead of holding back the others.
+     */
+    public Flux<Frame> frames() {
+        ensureConnected();
+        return frames.onBackpressureLatest();
+    }
+
+    /**
+     * The most recent frame of the video stream, a memory read in the common case.
+     * Waits for the next frame when the cached one is missing or stale and falls back to capture-image when the stream is down.
+     */
+    public Mono<Frame> latestFrame() {
+        return Mono.defer(() -> frameAfter(Instant.now().minus(MAX_FRAME_AGE)));
+    }
+
+    /**
+     * The first frame received after the given instant, e.g. the end of a motion.
+     */
+    public Mono<Frame> frameAfter(Instant instant) {
+        ensureConnected();
+        return Mono.justOrEmpty(latestFrame.get())
+            .filter(frame -> frame.receivedAt().isAfter(instant))
+            .switchIfEmpty(Mono.defer(() -> frames.filter(frame -> frame.receivedAt().isAfter(instant))
+                .next()
+                .timeout(NEXT_FRAME_TIMEOUT, captures.fetch())));
+    }
+
+    private Mono<Frame> captureFrame() {
+        return call("capture-image",
+            client.get()
+                .uri("/v3/capture-image")
+                .retrieve()
+                .toEntity(byte[].class)
+                // an empty image would go to the LLM as if it were a real view
+                .filter(entity -> entity.getBody() != null && entity.getBody().length > 0)
+                .switchIfEmpty(Mono.error(() -> new IllegalStateException("empty image")))
+                .map(entity -> {
+                    String sequence = entity.getHeaders().getFirst(FRAME_SEQUENCE_HEADER);
+                    return new Frame(sequence == null ? -1 : Long.parseLong(sequence), Instant.now(), entity.getBody());
+                }),
+            properties.captureTimeout(),
+            RpiService::isTransient);
+    }
+
+    private <T> Mono<T> call(String name, Mono<T> request, Duration deadline, Predicate<Throwable> retryable) {
+        var attempts = request
+            .timeout(deadline)
+            .retryWhen(Retry.backoff(properties.retries(), properties.retryBackoff())
+                .maxBackoff(properties.maxRetryBackoff())
+                .jitter(0.5)
+                .filter(retryable)
+                .onRetryExhaustedThrow((spec, signal) -> signal.failure()));
+        return breaker.protect(name, attempts, RpiService::isTransient)
+            .onErrorMap(e -> !(e instanceof RobotCallException), e -> new RobotCallException(id, name + " failed: " + e, e));
+    }
+
+    private static boolean isTransient(Throwable e) {
+        return e instanceof TimeoutException
+            || e instanceof WebClientRequestException
+            || e instanceof WebClientResponseException response && response.getStatusCode().is5xxServerError();
+    }
+
+    private static boolean neverReachedTheRobot(Throwable e) {
+        return e instanceof WebClientRequestException && e.getCause() instanceof ConnectException;
+    }
+
+    private void keepRecent(Frame frame) {
+        synchronized (recentFrames) {
+            if (recentFrames.size() == RECENT_FRAMES) {
+                recentFrames.removeFirst();
+            }
+            recentFrames.addLast(frame);
+        }
+    }
+
+    /**
+     * Streamed frames leading up to the given one, evenly spread over the span.
+     * @return oldest first and the given frame last, fewer than asked for when the stream has not kept enough
+     */
+    public List<Frame> recentFrames(Frame newest, int count, Duration span) {
+        List<Frame> picked = new ArrayList<>(count);
+        synchronized (recentFrames) {
+            for (int i = count - 1; i > 0; i--) {
+                Instant target = newest.receivedAt().minus(span.multipliedBy(i).dividedBy(count - 1));
+                Frame closest = null;
+                for (Frame frame : recentFrames) {
+                    if (!frame.receivedAt().isBefore(newest.receivedAt())) {
+                        break;
+                    }
+                    if (closest == null || Duration.between(frame.receivedAt(), target).abs()
+                        .compareTo(Duration.between(closest.receivedAt(), target).abs()) < 0) {
+                        closest = frame;
+                    }
+                }
+                if (closest != null && (picked.isEmpty() || picked.getLast() != closest)) {
+                    picked.add(closest);
+                }
+            }
+        }
+        picked.add(newest);
+        return picked;
+    }
+
+    public Mono<Void> rotateHead(String channel, int angle) {
+        return call("rotate-head",
+            client.post()
+                .uri("/rotate-head?channel={channel}&angle={angle}", channel, angle)
+                .retrieve()
+                .bodyToMono(Void.class),
+            properties.moveTimeout(),
+            RpiService::isTransient);
+    }
+
+    private Frame streamedFrame() {
+        var frame = latestFrame.get();
+        return frame == null || frame.age().compareTo(MAX_FRAME_AGE) > 0 ? null : frame;
+    }
+
+    Mono<Void> healthCheck() {
         return client.get()
-            .uri("/v3/video-stream")
+            .uri("/actuator/health")
             .retrieve()
-            .bodyToFlux(byte[].class)
-            .map(Base64.getEncoder()::encodeToString)
-            .take(10);
+            .toBodilessEntity()
+            .then();
+    }
+
+    /**
+     * @return the age of the most recent frame, null when none arrived yet
+     */
+    public Duration frameAge() {
+        var frame = latestFrame.get();
+        return frame == null ? null : frame.age();
+    }
+
+    // the upstream connection is opened on first use and then kept, so the latest frame cache stays warm
+    private void ensureConnected() {
+        if (connected.compareAndSet(false, true)) {
+            frames.subscribe();
+        }
     }
 
     @Tool(description = "Get a picture from the robot front first person camera, as a base64 string representing byte arrays representing JPEG image")
     public Mono<byte[]> image() {
-        return client.get()
-            .uri("/v3/capture-image")
-            .retrieve()
-            .bodyToMono(byte[].class)
-            .retry(2)
-            .onErrorReturn(new byte[]{});
+        // a failure reaches the model as a tool error, not as a blank picture it would try to describe
+        return captures.fetch()
+            .map(Frame::jpeg);
     }
 
     public enum MOVE_DIRECTION {
@@ -67,6 +282,15 @@ public class RpiService {
                 command.equals(LEFT.name()) ||
                 command.equals(RIGHT.name()));
         }
+
+        public MOVE_DIRECTION opposite() {
+            return switch (this) {
+                case FORWARD -> BACKWARD;
+                case BACKWARD -> FORWARD;
+                case LEFT -> RIGHT;
+                case RIGHT -> LEFT;
+            };
+        }
     }
 }
 
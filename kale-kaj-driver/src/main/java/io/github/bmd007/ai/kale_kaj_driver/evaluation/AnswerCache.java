@@ -0,0 +1,113 @@
+package io.github.bmd007.ai.kale_kaj_driver.evaluation;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every answer an evaluation received, so the next evaluation of the same corpus runs offline and costs nothing.
+ * Kept as a JSON lines file that is only ever appended to, with the latency and usage of the original call,
+ * a cached answer scores exactly like the live one did.
+ */
+@Slf4j
+@Component
+class AnswerCache {
+
+    private final EvaluationProperties properties;
+    private final ObjectMapper objectMapper;
+    private final Map<String, CachedAnswer> answers = new ConcurrentHashMap<>();
+    private boolean loaded;
+
+    /**
+     * @param answer the raw answer of the model
+     */
+    record CachedAnswer(String answer, Integer inputTokens, Integer outputTokens, long firstTokenMillis, long totalMillis) {
+    }
+
+    private record Line(String key, CachedAnswer answer) {
+    }
+
+    AnswerCache(EvaluationProperties properties, ObjectMapper objectMapper) {
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+    }
+
+    static String key(String model, String systemPrompt, String goal, byte[] jpeg) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{model, systemPrompt, goal}) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest(jpeg));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    /**
+     * Blocking, reads the file on first use.
+     */
+    Optional<CachedAnswer> get(String key) {
+        load();
+        return Optional.ofNullable(answers.get(key));
+    }
+
+    /**
+     * Blocking, appends to the file.
+     */
+    void put(String key, CachedAnswer answer) {
+        answers.put(key, answer);
+        var file = properties.answerCache();
+        if (file == null) {
+            return;
+        }
+        try {
+            String line = objectMapper.writeValueAsString(new Line(key, answer)) + "\n";
+            synchronized (this) {
+                Files.createDirectories(file.toAbsolutePath().getParent());
+                Files.writeString(file, line, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            }
+        } catch (IOException e) {
+            log.warn("Could not append to the answer cache {}: {}", file, e.getMessage());
+        }
+    }
+
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        Path file = properties.answerCache();
+        if (file == null || !Files.exists(file)) {
+            return;
+        }
+        try (var lines = Files.lines(file)) {
+            lines.filter(line -> !line.isBlank()).forEach(line -> {
+                try {
+                    var entry = objectMapper.readValue(line, Line.class);
+                    answers.put(entry.key(), entry.answer());
+                } catch (JsonProcessingException e) {
+                    // most likely the last line of a run that was killed while writing it
+                    log.warn("Skipping an unreadable line of the answer cache {}", file);
+                }
+            });
+            log.info("Loaded {} cached answers from {}", answers.size(), file);
+        } catch (IOException e) {
+            log.warn("Could not read the answer cache {}, starting empty: {}", file, e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.github.bmd007.ai.kale_kaj_driver.evaluation;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @param models            compared when the request names none, Gemini models by their name, anything else is asked of Ollama
+ * @param promptVariants    system prompts to compare by name, next to the {@code default} one of the agent loop
+ * @param parallelism       decision points evaluated at once, the providers' concurrency limits of the loop apply on top
+ * @param requestsPerMinute per provider, e.g. {@code gemini: 60}, unlisted providers are not rate limited
+ * @param answerCache       JSON lines file of every answer received, keyed by model, prompt, goal and frame; none when null
+ * @param offline           answer only from the answer cache, decision points without a cached answer are reported as such
+ */
+@ConfigurationProperties("kale-kaj-driver.evaluation")
+public record EvaluationProperties(
+    @DefaultValue({"gemini-2.5-pro", "gemini-2.5-flash", "gemini-2.5-flash-lite", "llava"}) List<String> models,
+    @DefaultValue Map<String, String> promptVariants,
+    @DefaultValue("4") int parallelism,
+    @DefaultValue Map<String, Integer> requestsPerMinute,
+    Path answerCache,
+    @DefaultValue("false") boolean offline) {
+}
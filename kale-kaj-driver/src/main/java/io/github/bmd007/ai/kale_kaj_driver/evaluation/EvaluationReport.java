@@ -0,0 +1,41 @@
+package io.github.bmd007.ai.kale_kaj_driver.evaluation;
+
+import java.time.Instant;
+import java.util.List;
+
+/**
+ * One row per model and prompt variant, best action agreement first.
+ */
+public record EvaluationReport(Instant generatedAt, long elapsedMillis, int scenarios, int decisionPoints, List<Row> rows) {
+
+    /**
+     * Rates are over the decision points the model answered, an unusable answer counts as a disagreement.
+     *
+     * @param cached               answers taken from the answer cache instead of the model
+     * @param notCached            decision points skipped offline, for want of a cached answer
+     * @param firstActionAgreement the first action is the one the recorded run took, what the car would have done next
+     * @param exactAgreement       all actions are the ones the recorded run took
+     * @param completionAgreement  the model declares the goal achieved exactly where the recorded run did
+     * @param successRate          scenarios in which the model never contradicted the recorded run, a proxy for reaching the goal:
+     *                             no early or missed completion, no move reversing the recorded one, no unusable answer
+     * @param cost                 in USD, of the answers as if they were all paid for now, cached ones included
+     */
+    public record Row(
+        String model,
+        String variant,
+        int decisions,
+        int answered,
+        int cached,
+        int unusable,
+        int failed,
+        int notCached,
+        double firstActionAgreement,
+        double exactAgreement,
+        double completionAgreement,
+        double successRate,
+        long p50LatencyMillis,
+        long p95LatencyMillis,
+        double cost,
+        double costPerDecision) {
+    }
+}
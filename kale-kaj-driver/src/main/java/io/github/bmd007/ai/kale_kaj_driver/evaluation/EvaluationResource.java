@@ -0,0 +1,28 @@
+package io.github.bmd007.ai.kale_kaj_driver.evaluation;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import reactor.core.publisher.Mono;
+
+@RestController
+public class EvaluationResource {
+
+    private final EvaluationRunner evaluationRunner;
+
+    public EvaluationResource(EvaluationRunner evaluationRunner) {
+        this.evaluationRunner = evaluationRunner;
+    }
+
+    /**
+     * Evaluates the requested models and prompt variants on the recorded runs, an empty body evaluates everything configured.
+     */
+    @PostMapping("/evaluation")
+    public Mono<EvaluationReport> evaluate(@RequestBody(required = false) EvaluationRunner.EvaluationRequest request) {
+        return Mono.defer(() -> evaluationRunner.evaluate(
+                request == null ? new EvaluationRunner.EvaluationRequest(null, null, null, null) : request))
+            .onErrorMap(IllegalArgumentException.class, e -> new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage()));
+    }
+}
@@ -0,0 +1,329 @@
+package io.github.bmd007.ai.kale_kaj_driver.evaluation;
+
+import io.github.bmd007.ai.kale_kaj_driver.AgentRunner;
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+import io.github.bmd007.ai.kale_kaj_driver.RpiService.MOVE_DIRECTION;
+import io.github.bmd007.ai.kale_kaj_driver.evaluation.AnswerCache.CachedAnswer;
+import io.github.bmd007.ai.kale_kaj_driver.llm.LlmCallReport;
+import io.github.bmd007.ai.kale_kaj_driver.llm.ModelCaller;
+import io.github.bmd007.ai.kale_kaj_driver.llm.ResponseValidator;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.ResponseParsed;
+import io.github.bmd007.ai.kale_kaj_driver.metrics.PricingProperties;
+import io.github.bmd007.ai.kale_kaj_driver.recording.RecordedStep;
+import io.github.bmd007.ai.kale_kaj_driver.recording.Recording;
+import io.github.bmd007.ai.kale_kaj_driver.recording.RunRecorder;
+import io.github.bmd007.ai.kale_kaj_driver.vision.ImagePreprocessor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.SystemMessage;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.chat.prompt.ChatOptions;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.content.Media;
+import org.springframework.stereotype.Component;
+import org.springframework.util.MimeTypeUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Replays the decision points of recorded runs to several models and system prompts and compares their answers
+ * with what the recorded run decided. A decision point is a step the LLM or the decision cache decided,
+ * with the goal of its run and the frame it was decided on, preprocessed as the loop would.
+ * Every decision point is asked on its own, without the history of the run, so all candidates see the same question.
+ */
+@Slf4j
+@Component
+public class EvaluationRunner {
+
+    public static final String DEFAULT_VARIANT = "default";
+    private static final Duration CALL_TIMEOUT = Duration.ofSeconds(60);
+
+    private final RunRecorder runRecorder;
+    private final ImagePreprocessor imagePreprocessor;
+    private final ModelCaller modelCaller;
+    private final ResponseValidator responseValidator;
+    private final PricingProperties pricing;
+    private final AnswerCache answerCache;
+    private final EvaluationProperties properties;
+    private final ProviderRateLimiter rateLimiter;
+
+    public EvaluationRunner(RunRecorder runRecorder,
+                            ImagePreprocessor imagePreprocessor,
+                            ModelCaller modelCaller,
+                            ResponseValidator responseValidator,
+                            PricingProperties pricing,
+                            AnswerCache answerCache,
+                            EvaluationProperties properties) {
+        this.runRecorder = runRecorder;
+        this.imagePreprocessor = imagePreprocessor;
+        this.modelCaller = modelCaller;
+        this.responseValidator = responseValidator;
+        this.pricing = pricing;
+        this.answerCache = answerCache;
+        this.properties = properties;
+        this.rateLimiter = new ProviderRateLimiter(properties.requestsPerMinute());
+    }
+
+    /**
+     * @param sessions recorded sessions to use as scenarios, all of them when null or empty
+     * @param models   the configured models when null or empty
+     * @param variants prompt variants by name, all configured ones when null or empty
+     * @param offline  the configured setting when null
+     */
+    public record EvaluationRequest(List<String> sessions, List<String> models, List<String> variants, Boolean offline) {
+    }
+
+    private record Scenario(String sessionId, String goal, List<DecisionPoint> points) {
+    }
+
+    private record DecisionPoint(int iteration, Frame frame, int imageTokens, List<String> actions, boolean completed) {
+    }
+
+    private record Task(Scenario scenario, DecisionPoint point, String model, String variant, String systemPrompt) {
+    }
+
+    private enum Status {
+        ANSWERED,
+        UNUSABLE,
+        FAILED,
+        NOT_CACHED
+    }
+
+    private record Outcome(Task task, Status status, boolean cached, List<String> actions, long latencyMillis, double cost) {
+
+        private boolean asked() {
+            return status == Status.ANSWERED || status == Status.UNUSABLE;
+        }
+
+        private boolean firstActionAgrees() {
+            var reference = task.point().actions();
+            return status == Status.ANSWERED && !actions.isEmpty() && !reference.isEmpty()
+                && actions.getFirst().equalsIgnoreCase(reference.getFirst());
+        }
+
+        private boolean exactlyAgrees() {
+            return status == Status.ANSWERED && normalized(actions).equals(normalized(task.point().actions()));
+        }
+
+        private boolean completionAgrees() {
+            return status == Status.ANSWERED && actions.isEmpty() == task.point().completed();
+        }
+
+        private boolean contradicts() {
+            if (status == Status.UNUSABLE) {
+                return true;
+            }
+            if (status != Status.ANSWERED) {
+                return false;
+            }
+            if (!completionAgrees()) {
+                return true;
+            }
+            var reference = normalized(task.point().actions());
+            var answer = normalized(actions);
+            return !reference.isEmpty() && !answer.isEmpty()
+                && MOVE_DIRECTION.isMoveCommand(reference.getFirst()) && MOVE_DIRECTION.isMoveCommand(answer.getFirst())
+                && MOVE_DIRECTION.valueOf(reference.getFirst()).opposite() == MOVE_DIRECTION.valueOf(answer.getFirst());
+        }
+
+        private static List<String> normalized(List<String> actions) {
+            return actions.stream().map(action -> action.trim().toUpperCase(Locale.ROOT)).toList();
+        }
+    }
+
+    public Mono<EvaluationReport> evaluate(EvaluationRequest request) {
+        var models = request.models() == null || request.models().isEmpty() ? properties.models() : request.models();
+        var variants = variants(request.variants());
+        boolean offline = request.offline() == null ? properties.offline() : request.offline();
+        return Mono.defer(() -> {
+            long started = System.nanoTime();
+            return scenarios(request.sessions())
+                .collectList()
+                .flatMap(scenarios -> Flux.fromIterable(scenarios)
+                    .concatMapIterable(scenario -> scenario.points().stream()
+                        .flatMap(point -> models.stream()
+                            .flatMap(model -> variants.entrySet().stream()
+                                .map(variant -> new Task(scenario, point, model, variant.getKey(), variant.getValue()))))
+                        .toList())
+                    .flatMap(task -> evaluate(task, offline), properties.parallelism())
+                    .collectList()
+                    .map(outcomes -> report(scenarios, outcomes, Duration.ofNanos(System.nanoTime() - started))));
+        });
+    }
+
+    private Map<String, String> variants(List<String> names) {
+        var variants = new LinkedHashMap<String, String>();
+        variants.put(DEFAULT_VARIANT, AgentRunner.SYSTEM_PROMPT);
+        variants.putAll(properties.promptVariants());
+        if (names == null || names.isEmpty()) {
+            return variants;
+        }
+        var selected = new LinkedHashMap<String, String>();
+        for (String name : names) {
+            var prompt = variants.get(name);
+            if (prompt == null) {
+                throw new IllegalArgumentException("Unknown prompt variant " + name + ", known are " + variants.keySet());
+            }
+            selected.put(name, prompt);
+        }
+        return selected;
+    }
+
+    private Flux<Scenario> scenarios(List<String> sessions) {
+        return Mono.fromCallable(() -> sessions == null || sessions.isEmpty() ? runRecorder.recordedSessions() : sessions)
+            .flatMapIterable(ids -> ids)
+            .concatMap(id -> Mono.fromCallable(() -> runRecorder.load(id)))
+            .subscribeOn(Schedulers.boundedElastic())
+            .concatMap(this::scenario)
+            .filter(scenario -> !scenario.points().isEmpty());
+    }
+
+    // steps taken on the fast path or by the fallback were not decided by a model, there is nothing to compare them with
+    private Mono<Scenario> scenario(Recording recording) {
+        return Flux.fromIterable(recording.steps().values())
+            .filter(step -> step.source() == RecordedStep.Source.LLM || step.source() == RecordedStep.Source.CACHE)
+            .filter(step -> recording.frames().containsKey(step.iteration()))
+            .sort(Comparator.comparingInt(RecordedStep::iteration))
+            .concatMap(step -> imagePreprocessor.preprocess(recording.frames().get(step.iteration()))
+                .map(frame -> new DecisionPoint(step.iteration(), frame.frame(),
+                    ImagePreprocessor.estimateImageTokens(frame.width(), frame.height()), step.actions(), step.completed())))
+            .collectList()
+            .map(points -> new Scenario(recording.sessionId(), recording.goal(), points));
+    }
+
+    private Mono<Outcome> evaluate(Task task, boolean offline) {
+        String key = AnswerCache.key(task.model(), task.systemPrompt(), task.scenario().goal(), task.point().frame().jpeg());
+        return Mono.fromCallable(() -> answerCache.get(key))
+            .subscribeOn(Schedulers.boundedElastic())
+            .flatMap(cached -> {
+                if (cached.isPresent()) {
+                    return score(task, cached.get(), true);
+                }
+                if (offline) {
+                    return Mono.just(new Outcome(task, Status.NOT_CACHED, false, List.of(), 0, 0));
+                }
+                return ask(task)
+                    .flatMap(answer -> Mono.fromRunnable(() -> answerCache.put(key, answer))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .then(score(task, answer, false)));
+            })
+            .onErrorResume(e -> {
+                log.warn("Evaluating {} with {} on iteration {} of session {} failed: {}",
+                    task.variant(), task.model(), task.point().iteration(), task.scenario().sessionId(), e.toString());
+                return Mono.just(new Outcome(task, Status.FAILED, false, List.of(), 0, 0));
+            });
+    }
+
+    private Mono<CachedAnswer> ask(Task task) {
+        return rateLimiter.acquire(ModelCaller.provider(task.model()))
+            .thenMany(modelCaller.call(task.model(), prompt(task)))
+            .filter(event -> event instanceof ResponseParsed || event instanceof LlmCallReport)
+            .collectList()
+            .timeout(CALL_TIMEOUT)
+            .map(events -> {
+                var response = (ResponseParsed) events.getFirst();
+                var report = (LlmCallReport) events.getLast();
+                return new CachedAnswer(response.json(), report.inputTokens(), report.outputTokens(),
+                    report.firstToken().toMillis(), report.total().toMillis());
+            });
+    }
+
+    // the question the loop asks on the first step of a run
+    private static Prompt prompt(Task task) {
+        var media = Media.builder()
+            .mimeType(MimeTypeUtils.IMAGE_JPEG)
+            .data(task.point().frame().jpeg())
+            .build();
+        var question = new UserMessage("""
+            The goal is: %s
+            What do you see? What should be the next move?""".formatted(task.scenario().goal()))
+            .mutate()
+            .media(media)
+            .build();
+        return Prompt.builder()
+            .messages(new SystemMessage(task.systemPrompt()), question)
+            .chatOptions(ChatOptions.builder().temperature(0.0).build())
+            .build();
+    }
+
+    private Mono<Outcome> score(Task task, CachedAnswer answer, boolean cached) {
+        return StreamingResponseParser.parse(Flux.just(answer.answer()))
+            .ofType(ResponseParsed.class)
+            .last()
+            .map(parsed -> {
+                var validated = responseValidator.validate(parsed);
+                // providers that report no usage are estimated like the loop does, four characters a token
+                long inputTokens = answer.inputTokens() != null
+                    ? answer.inputTokens()
+                    : (task.systemPrompt().length() + task.scenario().goal().length()) / 4 + task.point().imageTokens();
+                long outputTokens = answer.outputTokens() != null ? answer.outputTokens() : answer.answer().length() / 4;
+                double cost = pricing.cost(task.model(), inputTokens, outputTokens);
+                if (validated.outcome() == ResponseValidator.Outcome.UNUSABLE) {
+                    return new Outcome(task, Status.UNUSABLE, cached, List.of(), answer.totalMillis(), cost);
+                }
+                return new Outcome(task, Status.ANSWERED, cached, validated.response().actions(), answer.totalMillis(), cost);
+            });
+    }
+
+    private static EvaluationReport report(List<Scenario> scenarios, List<Outcome> outcomes, Duration elapsed) {
+        Map<String, List<Outcome>> byCandidate = outcomes.stream()
+            .collect(Collectors.groupingBy(outcome -> outcome.task().model() + "\n" + outcome.task().variant(),
+                LinkedHashMap::new, Collectors.toList()));
+        var rows = byCandidate.values().stream()
+            .map(EvaluationRunner::row)
+            .sorted(Comparator.comparingDouble(EvaluationReport.Row::firstActionAgreement).reversed()
+                .thenComparingDouble(EvaluationReport.Row::cost))
+            .toList();
+        int decisionPoints = scenarios.stream().mapToInt(scenario -> scenario.points().size()).sum();
+        return new EvaluationReport(Instant.now(), elapsed.toMillis(), scenarios.size(), decisionPoints, rows);
+    }
+
+    private static EvaluationReport.Row row(List<Outcome> outcomes) {
+        var task = outcomes.getFirst().task();
+        var asked = outcomes.stream().filter(Outcome::asked).toList();
+        long[] latencies = asked.stream().mapToLong(Outcome::latencyMillis).sorted().toArray();
+        var scenarios = asked.stream()
+            .collect(Collectors.groupingBy(outcome -> outcome.task().scenario().sessionId(),
+                Collectors.anyMatch(Outcome::contradicts)));
+        double cost = outcomes.stream().mapToDouble(Outcome::cost).sum();
+        return new EvaluationReport.Row(
+            task.model(),
+            task.variant(),
+            outcomes.size(),
+            (int) asked.stream().filter(outcome -> outcome.status() == Status.ANSWERED).count(),
+            (int) outcomes.stream().filter(Outcome::cached).count(),
+            (int) asked.stream().filter(outcome -> outcome.status() == Status.UNUSABLE).count(),
+            (int) outcomes.stream().filter(outcome -> outcome.status() == Status.FAILED).count(),
+            (int) outcomes.stream().filter(outcome -> outcome.status() == Status.NOT_CACHED).count(),
+            rate(asked, Outcome::firstActionAgrees),
+            rate(asked, Outcome::exactlyAgrees),
+            rate(asked, Outcome::completionAgrees),
+            scenarios.isEmpty() ? 0 : (double) scenarios.values().stream().filter(contradicted -> !contradicted).count() / scenarios.size(),
+            percentile(latencies, 0.5),
+            percentile(latencies, 0.95),
+            cost,
+            asked.isEmpty() ? 0 : cost / asked.size());
+    }
+
+    private static double rate(List<Outcome> outcomes, Predicate<Outcome> agrees) {
+        return outcomes.isEmpty() ? 0 : (double) outcomes.stream().filter(agrees).count() / outcomes.size();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.clamp((int) Math.ceil(percentile * sorted.length) - 1, 0, sorted.length - 1)];
+    }
+}
@@ -0,0 +1,39 @@
+package io.github.bmd007.ai.kale_kaj_driver.evaluation;
+
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spaces the requests to each provider evenly to stay within its requests per minute.
+ * Every acquire books the next free slot, so waiting requests go out in the order they asked.
+ */
+final class ProviderRateLimiter {
+
+    private final Map<String, Integer> requestsPerMinute;
+    private final Map<String, Long> nextSlot = new HashMap<>();
+
+    ProviderRateLimiter(Map<String, Integer> requestsPerMinute) {
+        this.requestsPerMinute = requestsPerMinute;
+    }
+
+    Mono<Void> acquire(String provider) {
+        return Mono.defer(() -> {
+            Integer limit = requestsPerMinute.get(provider);
+            if (limit == null || limit <= 0) {
+                return Mono.empty();
+            }
+            long interval = TimeUnit.MINUTES.toNanos(1) / limit;
+            long now = System.nanoTime();
+            long slot;
+            synchronized (this) {
+                slot = Math.max(now, nextSlot.getOrDefault(provider, now));
+                nextSlot.put(provider, slot + interval);
+            }
+            return slot <= now ? Mono.empty() : Mono.delay(Duration.ofNanos(slot - now)).then();
+        });
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking counting semaphore. Waiters queue per tenant in FIFO order, and released permits go round robin
+ * over the tenants that are waiting, so a tenant with many queued calls can not starve one with a single call.
+ * Cancelling a waiting acquire leaves the queue, it never leaks a permit.
+ * The acquired semaphore itself is emitted, so it can serve as the resource of {@code usingWhen}.
+ */
+final class AsyncSemaphore {
+
+    private static final int WAITING = 0;
+    private static final int GRANTED = 1;
+    private static final int CANCELLED = 2;
+
+    private final int permits;
+    // tenants with waiters, in the order they get their next turn
+    private final Map<String, Deque<Waiter>> waiters = new LinkedHashMap<>();
+    private int available;
+
+    AsyncSemaphore(int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException("At least one permit is needed, got " + permits);
+        }
+        this.permits = permits;
+        this.available = permits;
+    }
+
+    Mono<AsyncSemaphore> acquire(String tenant) {
+        return Mono.create(sink -> {
+            var waiter = new Waiter(sink);
+            boolean granted;
+            synchronized (this) {
+                granted = available > 0;
+                if (granted) {
+                    available--;
+                    waiter.state.set(GRANTED);
+                } else {
+                    waiters.computeIfAbsent(tenant, ignored -> new ArrayDeque<>()).addLast(waiter);
+                }
+            }
+            if (granted) {
+                sink.success(this);
+                return;
+            }
+            sink.onCancel(() -> {
+                if (waiter.state.compareAndSet(WAITING, CANCELLED)) {
+                    synchronized (this) {
+                        var queue = waiters.get(tenant);
+                        if (queue != null && queue.remove(waiter) && queue.isEmpty()) {
+                            waiters.remove(tenant);
+                        }
+                    }
+                } else {
+                    // the permit was handed over while the subscriber was cancelling
+                    release();
+                }
+            });
+        });
+    }
+
+    void release() {
+        Waiter next;
+        synchronized (this) {
+            while ((next = nextInTurn()) != null) {
+                if (next.state.compareAndSet(WAITING, GRANTED)) {
+                    break;
+                }
+            }
+            if (next == null) {
+                available = Math.min(permits, available + 1);
+                return;
+            }
+        }
+        next.sink.success(this);
+    }
+
+    // the first waiter of the tenant whose turn it is, the tenant then goes to the back of the line
+    private Waiter nextInTurn() {
+        Iterator<Map.Entry<String, Deque<Waiter>>> tenants = waiters.entrySet().iterator();
+        if (!tenants.hasNext()) {
+            return null;
+        }
+        var turn = tenants.next();
+        tenants.remove();
+        var waiter = turn.getValue().pollFirst();
+        if (!turn.getValue().isEmpty()) {
+            waiters.put(turn.getKey(), turn.getValue());
+        }
+        return waiter;
+    }
+
+    synchronized int queued() {
+        return waiters.values().stream().mapToInt(Deque::size).sum();
+    }
+
+    synchronized int inUse() {
+        return permits - available;
+    }
+
+    private static final class Waiter {
+        private final MonoSink<AsyncSemaphore> sink;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        private Waiter(MonoSink<AsyncSemaphore> sink) {
+            this.sink = sink;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * @param enabled       ask the local Ollama model first, when disabled every step goes straight to Gemini
+ * @param minConfidence local answers with a lower self-reported confidence are escalated to Gemini
+ * @param localTimeout  a local answer that takes longer than this is given up on and escalated
+ * @param hedge         ask both models at once and take the first acceptable answer, trades cloud cost for latency
+ */
+@ConfigurationProperties("kale-kaj-driver.cascade")
+public record CascadeProperties(
+    @DefaultValue("true") boolean enabled,
+    @DefaultValue("0.6") double minConfidence,
+    @DefaultValue("8s") Duration localTimeout,
+    @DefaultValue("false") boolean hedge) {
+}
@@ -0,0 +1,85 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.Event;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.metadata.Usage;
+import org.springframework.ai.chat.model.ChatResponse;
+import org.springframework.ai.chat.prompt.Prompt;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Objects;
+
+/**
+ * Streams one chat call within the concurrency limits, parses the answer as it arrives
+ * and closes the stream with an {@link LlmCallReport} of the call.
+ */
+final class ChatCalls {
+
+    private ChatCalls() {
+    }
+
+    /**
+     * @param model reported when the provider does not name the model in its response metadata
+     */
+    static Flux<Event> stream(LlmConcurrencyLimiter limiter, String provider, ChatClient client, Prompt prompt, String model) {
+        return Flux.defer(() -> {
+            var trace = new Trace(Objects.requireNonNullElse(model, provider));
+            return limiter.limit(provider, Flux.defer(() -> {
+                    // the permit is held from here on, time spent queueing for it is not the model's
+                    trace.started = System.nanoTime();
+                    return client.prompt(prompt).stream().chatResponse();
+                }))
+                .doOnNext(trace::observe)
+                .mapNotNull(ChatCalls::text)
+                .transform(StreamingResponseParser::parse)
+                .concatWith(Mono.fromSupplier(trace::report));
+        });
+    }
+
+    private static String text(ChatResponse response) {
+        return response.getResult() == null || response.getResult().getOutput() == null
+            ? null
+            : response.getResult().getOutput().getText();
+    }
+
+    // only touched by the signals of one call, which reactor delivers serially
+    private static final class Trace {
+        private String model;
+        private long started;
+        private long firstChunk = -1;
+        private Usage usage;
+
+        private Trace(String model) {
+            this.model = model;
+        }
+
+        private void observe(ChatResponse response) {
+            if (firstChunk < 0) {
+                firstChunk = System.nanoTime();
+            }
+            var metadata = response.getMetadata();
+            if (metadata == null) {
+                return;
+            }
+            // streamed usage is cumulative, the last chunk that has any holds the totals
+            if (metadata.getUsage() != null && metadata.getUsage().getTotalTokens() != null && metadata.getUsage().getTotalTokens() > 0) {
+                usage = metadata.getUsage();
+            }
+            if (metadata.getModel() != null && !metadata.getModel().isBlank()) {
+                model = metadata.getModel();
+            }
+        }
+
+        private LlmCallReport report() {
+            long now = System.nanoTime();
+            return new LlmCallReport(
+                model,
+                usage == null ? null : usage.getPromptTokens(),
+                usage == null ? null : usage.getCompletionTokens(),
+                Duration.ofNanos((firstChunk < 0 ? now : firstChunk) - started),
+                Duration.ofNanos(now - started));
+        }
+    }
+}
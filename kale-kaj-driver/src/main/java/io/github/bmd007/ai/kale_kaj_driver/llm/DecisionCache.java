@@ -0,0 +1,203 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.bmd007.ai.kale_kaj_driver.AiResource.LlmResponse;
+import io.github.bmd007.ai.kale_kaj_driver.vision.PerceptualHash;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Remembers LLM decisions by what the car saw, what it was asked to do and what it just did,
+ * so a corridor or doorway the agent has already been through is answered without a model call.
+ * Lookups find the nearest cached frame by Hamming distance of the perceptual hashes,
+ * among the decisions for the same goal and recent actions.
+ */
+@Slf4j
+@Component
+public class DecisionCache {
+
+    private final DecisionCacheProperties properties;
+    private final ObjectMapper objectMapper;
+    // access ordered, the eldest entry is the least recently used one
+    private final LinkedHashMap<Key, Entry> entries;
+    private final Counter hits;
+    private final Counter misses;
+    private final Timer latencySaved;
+
+    public DecisionCache(DecisionCacheProperties properties, ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > properties.maxEntries();
+            }
+        };
+        this.hits = Counter.builder("kale_kaj_driver.decision_cache.hits")
+            .register(meterRegistry);
+        this.misses = Counter.builder("kale_kaj_driver.decision_cache.misses")
+            .register(meterRegistry);
+        this.latencySaved = Timer.builder("kale_kaj_driver.decision_cache.latency.saved")
+            .description("Latency of the LLM calls that cache hits replaced")
+            .register(meterRegistry);
+        Gauge.builder("kale_kaj_driver.decision_cache.hit.rate", this, DecisionCache::hitRate)
+            .register(meterRegistry);
+        Gauge.builder("kale_kaj_driver.decision_cache.size", this, DecisionCache::size)
+            .register(meterRegistry);
+    }
+
+    /**
+     * @param recentActions the actions of the previous step, the same view calls for a different move halfway through a turn
+     */
+    private record Key(long hash, String goal, String recentActions) {
+    }
+
+    /**
+     * @param latency how long the LLM took to come up with the decision
+     */
+    private record Entry(LlmResponse response, Instant storedAt, Duration latency) {
+    }
+
+    // flat form of a cache entry in the persistence file
+    private record PersistedEntry(long hash, String goal, String recentActions, String thought, List<String> actions,
+                                  long storedAtEpochMillis, long latencyMillis) {
+    }
+
+    public Optional<LlmResponse> lookup(PerceptualHash hash, String goal, List<String> recentActions) {
+        if (!properties.enabled() || hash == null) {
+            return Optional.empty();
+        }
+        var goalKey = normalize(goal);
+        var actionsKey = signature(recentActions);
+        Instant expiredBefore = Instant.now().minus(properties.ttl());
+        synchronized (entries) {
+            Key nearest = null;
+            int nearestDistance = Integer.MAX_VALUE;
+            Iterator<Map.Entry<Key, Entry>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                var candidate = iterator.next();
+                if (candidate.getValue().storedAt().isBefore(expiredBefore)) {
+                    iterator.remove();
+                    continue;
+                }
+                var key = candidate.getKey();
+                if (!key.goal().equals(goalKey) || !key.recentActions().equals(actionsKey)) {
+                    continue;
+                }
+                int distance = Long.bitCount(key.hash() ^ hash.bits());
+                if (distance < nearestDistance) {
+                    nearest = key;
+                    nearestDistance = distance;
+                }
+            }
+            if (nearest == null || nearestDistance > properties.maxDistance()) {
+                misses.increment();
+                return Optional.empty();
+            }
+            // get, not the iterated value, so the hit counts as a use for the LRU order
+            var entry = entries.get(nearest);
+            hits.increment();
+            latencySaved.record(entry.latency());
+            log.debug("Decision cache hit at distance {} for {}, saved about {}ms", nearestDistance, hash, entry.latency().toMillis());
+            return Optional.of(entry.response());
+        }
+    }
+
+    public void put(PerceptualHash hash, String goal, List<String> recentActions, LlmResponse response, Duration latency) {
+        if (!properties.enabled() || hash == null) {
+            return;
+        }
+        var key = new Key(hash.bits(), normalize(goal), signature(recentActions));
+        synchronized (entries) {
+            entries.put(key, new Entry(response, Instant.now(), latency));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private double hitRate() {
+        double lookups = hits.count() + misses.count();
+        return lookups == 0 ? 0 : hits.count() / lookups;
+    }
+
+    private static String normalize(String goal) {
+        return goal == null ? "" : goal.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+    }
+
+    private static String signature(List<String> actions) {
+        return actions.stream()
+            .map(action -> action.trim().toUpperCase(Locale.ROOT))
+            .reduce((first, second) -> first + "," + second)
+            .orElse("");
+    }
+
+    @PostConstruct
+    void load() {
+        var file = properties.persistenceFile();
+        if (!properties.enabled() || file == null || !Files.exists(file)) {
+            return;
+        }
+        try {
+            List<PersistedEntry> persisted = objectMapper.readValue(file.toFile(), new TypeReference<>() {
+            });
+            synchronized (entries) {
+                persisted.forEach(entry -> entries.put(
+                    new Key(entry.hash(), entry.goal(), entry.recentActions()),
+                    new Entry(new LlmResponse(entry.thought(), entry.actions()),
+                        Instant.ofEpochMilli(entry.storedAtEpochMillis()),
+                        Duration.ofMillis(entry.latencyMillis()))));
+            }
+            log.info("Loaded {} cached decisions from {}", persisted.size(), file);
+        } catch (IOException e) {
+            log.warn("Could not load the decision cache from {}, starting empty", file, e);
+        }
+    }
+
+    @PreDestroy
+    void save() {
+        var file = properties.persistenceFile();
+        if (!properties.enabled() || file == null) {
+            return;
+        }
+        List<PersistedEntry> persisted = new ArrayList<>();
+        synchronized (entries) {
+            // insertion into the map on load follows this order, so the LRU order survives a restart
+            entries.forEach((key, entry) -> persisted.add(new PersistedEntry(
+                key.hash(), key.goal(), key.recentActions(),
+                entry.response().thought(), entry.response().actions(),
+                entry.storedAt().toEpochMilli(), entry.latency().toMillis())));
+        }
+        try {
+            if (file.getParent() != null) {
+                Files.createDirectories(file.getParent());
+            }
+            objectMapper.writeValue(file.toFile(), persisted);
+            log.info("Saved {} cached decisions to {}", persisted.size(), file);
+        } catch (IOException e) {
+            log.warn("Could not save the decision cache to {}", file, e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * @param maxDistance     a cached decision is reused for frames whose perceptual hash differs in at most this many bits
+ * @param maxEntries      least recently used decisions are evicted beyond this
+ * @param ttl             decisions older than this are never reused
+ * @param persistenceFile where the cache is loaded from at startup and saved to at shutdown, not persisted when unset
+ */
+@ConfigurationProperties("kale-kaj-driver.decision-cache")
+public record DecisionCacheProperties(
+    @DefaultValue("true") boolean enabled,
+    @DefaultValue("2") int maxDistance,
+    @DefaultValue("1000") int maxEntries,
+    @DefaultValue("24h") Duration ttl,
+    Path persistenceFile) {
+}
@@ -0,0 +1,155 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.Event;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.vertexai.gemini.VertexAiGeminiChatOptions;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Calls Gemini with a hedge against tail latency: when the first event of the answer has not arrived
+ * within the p95 of earlier calls, a duplicate request to a cheaper model goes out.
+ * Whichever answer starts first is streamed through, the other request is cancelled.
+ */
+@Slf4j
+@Component
+public class HedgedCaller {
+
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    private final ChatClient client;
+    private final String defaultModel;
+    private final LlmConcurrencyLimiter limiter;
+    private final HedgingProperties properties;
+    private final Timer firstEventLatency;
+    private final Timer latency;
+    private final Counter hedges;
+    private final Counter primaryWins;
+    private final Counter hedgeWins;
+
+    public HedgedCaller(@Qualifier("vertexAiGeminiChatModel") ChatModel vertexAiGeminiChatModel,
+                        LlmConcurrencyLimiter limiter,
+                        HedgingProperties properties,
+                        MeterRegistry meterRegistry) {
+        this.client = ChatClient.create(vertexAiGeminiChatModel);
+        this.defaultModel = vertexAiGeminiChatModel.getDefaultOptions().getModel();
+        this.limiter = limiter;
+        this.properties = properties;
+        this.firstEventLatency = Timer.builder("kale_kaj_driver.llm.first_event.latency")
+            .description("Time until the first action or the complete answer of the primary Gemini call")
+            .publishPercentiles(0.5, HEDGE_PERCENTILE, 0.99)
+            .register(meterRegistry);
+        this.latency = Timer.builder("kale_kaj_driver.llm.latency")
+            .description("Time until the answer of the call that won is complete")
+            .publishPercentiles(0.5, HEDGE_PERCENTILE, 0.99)
+            .register(meterRegistry);
+        this.hedges = Counter.builder("kale_kaj_driver.llm.hedges")
+            .register(meterRegistry);
+        this.primaryWins = Counter.builder("kale_kaj_driver.llm.hedge.wins")
+            .tag("winner", "primary")
+            .register(meterRegistry);
+        this.hedgeWins = Counter.builder("kale_kaj_driver.llm.hedge.wins")
+            .tag("winner", "hedge")
+            .register(meterRegistry);
+    }
+
+    public Flux<Event> call(Prompt prompt) {
+        return Flux.defer(() -> {
+            long started = System.nanoTime();
+            var hedged = new AtomicBoolean();
+            var primary = stream(withModel(prompt, null), defaultModel)
+                .transform(events -> timeFirstEvent(events, started, hedged));
+            if (!properties.enabled()) {
+                return timeCompletion(primary, started);
+            }
+            var hedge = Mono.delay(hedgeDelay())
+                .doOnNext(tick -> {
+                    hedged.set(true);
+                    hedges.increment();
+                    log.info("No answer from Gemini after {}ms, hedging with {}", tick, properties.model());
+                })
+                .thenMany(stream(withModel(prompt, properties.model()), properties.model()));
+            var winner = Flux.firstWithSignal(
+                primary.switchOnFirst((first, events) -> {
+                    if (hedged.get() && first.hasValue()) {
+                        primaryWins.increment();
+                    }
+                    return events;
+                }),
+                hedge.switchOnFirst((first, events) -> {
+                    if (first.hasValue()) {
+                        hedgeWins.increment();
+                    }
+                    return events;
+                }));
+            return timeCompletion(winner, started);
+        });
+    }
+
+    private Flux<Event> stream(Prompt prompt, String model) {
+        return ChatCalls.stream(limiter, ModelCascade.CLOUD, client, prompt, model);
+    }
+
+    /**
+     * @param hedged whether the hedge went out, only then can a cancel mean the hedge won
+     */
+    private Flux<Event> timeFirstEvent(Flux<Event> events, long started, AtomicBoolean hedged) {
+        var recorded = new AtomicBoolean();
+        Runnable record = () -> {
+            if (recorded.compareAndSet(false, true)) {
+                firstEventLatency.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+        };
+        // a primary cancelled because the hedge won took at least this long, leaving it out would flatter the p95;
+        // any other cancel, e.g. a client gone or a local answer winning the cascade, says nothing about Gemini
+        return events.doOnNext(event -> record.run())
+            .doOnCancel(() -> {
+                if (hedged.get()) {
+                    record.run();
+                }
+            });
+    }
+
+    private Flux<Event> timeCompletion(Flux<Event> events, long started) {
+        return events.doOnComplete(() -> latency.record(System.nanoTime() - started, TimeUnit.NANOSECONDS));
+    }
+
+    private Duration hedgeDelay() {
+        if (firstEventLatency.count() < properties.minSamples()) {
+            return properties.initialDelay();
+        }
+        for (ValueAtPercentile percentile : firstEventLatency.takeSnapshot().percentileValues()) {
+            if (percentile.percentile() == HEDGE_PERCENTILE) {
+                return Duration.ofNanos((long) percentile.value(TimeUnit.NANOSECONDS));
+            }
+        }
+        return properties.initialDelay();
+    }
+
+    /**
+     * Switches Gemini to JSON output constrained to the answer schema, actions can only be one of the move names.
+     * @param model null for the configured default model
+     */
+    private static Prompt withModel(Prompt prompt, String model) {
+        var options = VertexAiGeminiChatOptions.builder()
+            .model(model)
+            .responseMimeType("application/json")
+            .responseSchema(ResponseSchema.GEMINI)
+            .temperature(prompt.getOptions() == null ? null : prompt.getOptions().getTemperature())
+            .build();
+        return new Prompt(prompt.getInstructions(), options);
+    }
+}
@@ -0,0 +1,20 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+
+/**
+ * @param enabled      send a duplicate Gemini request when the first one is slower than usual
+ * @param model        the model of the duplicate request, a cheaper and faster one than the primary
+ * @param minSamples   calls observed before the measured p95 is trusted, until then {@code initialDelay} is used
+ * @param initialDelay when the duplicate goes out while too few latencies were observed
+ */
+@ConfigurationProperties("kale-kaj-driver.hedging")
+public record HedgingProperties(
+    @DefaultValue("true") boolean enabled,
+    @DefaultValue("gemini-2.5-flash") String model,
+    @DefaultValue("20") int minSamples,
+    @DefaultValue("5s") Duration initialDelay) {
+}
@@ -0,0 +1,16 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.Event;
+
+import java.time.Duration;
+
+/**
+ * Emitted after the answer events of every LLM call, including calls whose answer was escalated,
+ * so the caller can account for each call it paid for.
+ * @param inputTokens  as reported by the provider, null when it reported no usage
+ * @param outputTokens as reported by the provider, null when it reported no usage
+ * @param firstToken   from sending the request to the first streamed chunk, queueing for a permit excluded
+ */
+public record LlmCallReport(String model, Integer inputTokens, Integer outputTokens, Duration firstToken, Duration total)
+    implements Event {
+}
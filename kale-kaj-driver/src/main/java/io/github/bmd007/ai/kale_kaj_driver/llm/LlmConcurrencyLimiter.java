@@ -0,0 +1,76 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounds how many LLM calls run at once, globally and per provider.
+ * Calls beyond the limits wait, in FIFO order per tenant and round robin between tenants,
+ * a cancelled call leaves the queue or frees its permits.
+ * The tenant, usually the robot a call is made for, is read from the {@link #TENANT} key of the subscriber context.
+ */
+@Slf4j
+@Component
+public class LlmConcurrencyLimiter {
+
+    public static final String TENANT = LlmConcurrencyLimiter.class.getName() + ".tenant";
+    private static final String NO_TENANT = "";
+
+    private final AsyncSemaphore global;
+    private final Map<String, AsyncSemaphore> perProvider = new ConcurrentHashMap<>();
+
+    public LlmConcurrencyLimiter(LlmProperties properties) {
+        this.global = new AsyncSemaphore(properties.maxConcurrent());
+        properties.maxConcurrentPerProvider()
+            .forEach((provider, limit) -> perProvider.put(provider, new AsyncSemaphore(limit)));
+    }
+
+    public <T> Flux<T> limit(String provider, Flux<T> call) {
+        return Flux.usingWhen(
+            acquire(provider),
+            permits -> call,
+            permits -> Mono.fromRunnable(() -> permits.forEach(AsyncSemaphore::release))
+        );
+    }
+
+    public <T> Mono<T> limit(String provider, Mono<T> call) {
+        return limit(provider, call.flux()).next();
+    }
+
+    // provider first, then global, always in this order so two calls can not hold each other's permits
+    private Mono<List<AsyncSemaphore>> acquire(String provider) {
+        return Mono.deferContextual(context -> acquire(provider, context.getOrDefault(TENANT, NO_TENANT)));
+    }
+
+    private Mono<List<AsyncSemaphore>> acquire(String provider, String tenant) {
+        var providerSemaphore = perProvider.get(provider);
+        if (providerSemaphore == null) {
+            return global.acquire(tenant).map(List::of);
+        }
+        return providerSemaphore.acquire(tenant)
+            .flatMap(acquired -> global.acquire(tenant)
+                .map(globalPermit -> List.of(acquired, globalPermit))
+                // cancelled while waiting for a global permit, give the provider permit back
+                .doOnCancel(acquired::release))
+            .doOnSubscribe(subscription -> {
+                if (providerSemaphore.queued() > 0 || global.queued() > 0) {
+                    log.debug("LLM call to {} for {} queued, {} waiting for provider, {} waiting globally",
+                        provider, tenant, providerSemaphore.queued(), global.queued());
+                }
+            });
+    }
+
+    public int inFlight() {
+        return global.inUse();
+    }
+
+    public int queued() {
+        return global.queued();
+    }
+}
@@ -0,0 +1,16 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.util.Map;
+
+/**
+ * @param maxConcurrent                 LLM calls in flight across all sessions and providers
+ * @param maxConcurrentPerProvider      LLM calls in flight per provider, e.g. {@code gemini: 2}, unlisted providers are only bound by the global limit
+ */
+@ConfigurationProperties("kale-kaj-driver.llm")
+public record LlmProperties(
+    @DefaultValue("4") int maxConcurrent,
+    @DefaultValue Map<String, Integer> maxConcurrentPerProvider) {
+}
@@ -0,0 +1,55 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.Event;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.ollama.api.OllamaOptions;
+import org.springframework.ai.vertexai.gemini.VertexAiGeminiChatOptions;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+/**
+ * Calls one named model directly, without the cascade or hedging of the agent loop,
+ * with the same structured output settings and within the same concurrency limits.
+ * Meant for comparing models, a Gemini model is recognised by its name, anything else is served by Ollama.
+ */
+@Component
+public class ModelCaller {
+
+    private final ChatClient localClient;
+    private final ChatClient cloudClient;
+    private final LlmConcurrencyLimiter limiter;
+
+    public ModelCaller(@Qualifier("ollamaChatModel") ChatModel ollamaChatModel,
+                       @Qualifier("vertexAiGeminiChatModel") ChatModel vertexAiGeminiChatModel,
+                       LlmConcurrencyLimiter limiter) {
+        this.localClient = ChatClient.create(ollamaChatModel);
+        this.cloudClient = ChatClient.create(vertexAiGeminiChatModel);
+        this.limiter = limiter;
+    }
+
+    public static String provider(String model) {
+        return model.startsWith("gemini") ? ModelCascade.CLOUD : ModelCascade.LOCAL;
+    }
+
+    public Flux<Event> call(String model, Prompt prompt) {
+        Double temperature = prompt.getOptions() == null ? null : prompt.getOptions().getTemperature();
+        if (provider(model).equals(ModelCascade.CLOUD)) {
+            var options = VertexAiGeminiChatOptions.builder()
+                .model(model)
+                .responseMimeType("application/json")
+                .responseSchema(ResponseSchema.GEMINI)
+                .temperature(temperature)
+                .build();
+            return ChatCalls.stream(limiter, ModelCascade.CLOUD, cloudClient, new Prompt(prompt.getInstructions(), options), model);
+        }
+        var options = OllamaOptions.builder()
+            .model(model)
+            .format(ResponseSchema.SCHEMA)
+            .temperature(temperature)
+            .build();
+        return ChatCalls.stream(limiter, ModelCascade.LOCAL, localClient, new Prompt(prompt.getInstructions(), options), model);
+    }
+}
@@ -0,0 +1,171 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import io.github.bmd007.ai.kale_kaj_driver.RpiService.MOVE_DIRECTION;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.ActionParsed;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.Event;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.ResponseParsed;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.client.ChatClient;
+import org.springframework.ai.chat.model.ChatModel;
+import org.springframework.ai.chat.prompt.Prompt;
+import org.springframework.ai.ollama.api.OllamaOptions;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Local first model routing: every step goes to the Ollama vision model on the LAN,
+ * and only escalates to Gemini when the local answer can not be parsed, is not confident enough,
+ * declares the goal achieved or undoes the previous move.
+ * An accepted local answer is replayed as events, so callers handle both tiers the same way,
+ * a Gemini answer is streamed through as it arrives. Every call made ends with its {@link LlmCallReport}.
+ */
+@Slf4j
+@Component
+public class ModelCascade {
+
+    public static final String LOCAL = "ollama";
+    public static final String CLOUD = "gemini";
+
+    private final ChatClient localClient;
+    private final String localModel;
+    private final HedgedCaller cloudCaller;
+    private final LlmConcurrencyLimiter limiter;
+    private final CascadeProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Counter localAnswers;
+    private final Counter cloudAnswers;
+
+    // injected by bean name rather than type, so a stub model can stand in when benchmarking
+    public ModelCascade(@Qualifier("ollamaChatModel") ChatModel ollamaChatModel,
+                        HedgedCaller cloudCaller,
+                        LlmConcurrencyLimiter limiter,
+                        CascadeProperties properties,
+                        MeterRegistry meterRegistry) {
+        this.localClient = ChatClient.create(ollamaChatModel);
+        this.localModel = ollamaChatModel.getDefaultOptions().getModel();
+        this.cloudCaller = cloudCaller;
+        this.limiter = limiter;
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.localAnswers = answers(LOCAL);
+        this.cloudAnswers = answers(CLOUD);
+    }
+
+    /**
+     * @param recentActions the actions of the previous step, a local answer reversing them is double checked by Gemini
+     */
+    public Flux<Event> ask(Prompt prompt, List<String> recentActions) {
+        if (!properties.enabled()) {
+            return cloud(prompt);
+        }
+        if (properties.hedge()) {
+            // the race is won by the first event, so a Gemini answer keeps streaming through and the car moves on its
+            // first action; the cost of the losing call is not known, it was cancelled before the provider reported usage
+            return Flux.firstWithValue(
+                local(prompt, recentActions).filter(LocalAnswer::accepted).flatMapIterable(LocalAnswer::events),
+                cloud(prompt));
+        }
+        return local(prompt, recentActions)
+            .flatMapMany(answer -> answer.accepted()
+                ? Flux.fromIterable(answer.events())
+                // the escalated call was paid for all the same
+                : Flux.<Event>just(answer.report()).concatWith(cloud(prompt)))
+            .switchIfEmpty(Flux.defer(() -> cloud(prompt)));
+    }
+
+    private record LocalAnswer(ResponseParsed response, LlmCallReport report, boolean accepted) {
+
+        private List<Event> events() {
+            var events = new ArrayList<Event>();
+            for (int index = 0; index < response.actions().size(); index++) {
+                events.add(new ActionParsed(index, response.actions().get(index)));
+            }
+            events.add(response);
+            events.add(report);
+            return events;
+        }
+    }
+
+    /**
+     * @return the complete local answer, empty when the local model failed
+     */
+    private Mono<LocalAnswer> local(Prompt prompt, List<String> recentActions) {
+        return ChatCalls.stream(limiter, LOCAL, localClient, structured(prompt), localModel)
+            .filter(event -> event instanceof ResponseParsed || event instanceof LlmCallReport)
+            .collectList()
+            .timeout(properties.localTimeout())
+            .map(events -> {
+                var response = (ResponseParsed) events.getFirst();
+                var reason = escalationReason(response, recentActions);
+                reason.ifPresentOrElse(this::escalated, localAnswers::increment);
+                return new LocalAnswer(response, (LlmCallReport) events.getLast(), reason.isEmpty());
+            })
+            .onErrorResume(e -> {
+                log.warn("Local model failed: {}", e.toString());
+                escalated("local model failed");
+                return Mono.empty();
+            });
+    }
+
+    // Ollama constrains decoding to the schema, enum and all
+    private static Prompt structured(Prompt prompt) {
+        var options = OllamaOptions.builder()
+            .format(ResponseSchema.SCHEMA)
+            .temperature(prompt.getOptions() == null ? null : prompt.getOptions().getTemperature())
+            .build();
+        return new Prompt(prompt.getInstructions(), options);
+    }
+
+    private Flux<Event> cloud(Prompt prompt) {
+        return cloudCaller.call(prompt)
+            .doOnComplete(cloudAnswers::increment);
+    }
+
+    private Optional<String> escalationReason(ResponseParsed response, List<String> recentActions) {
+        if (!response.wellFormed()) {
+            return Optional.of("unparsable answer");
+        }
+        var moves = response.actions().stream()
+            .map(action -> action.trim().toUpperCase(Locale.ROOT))
+            .toList();
+        if (!moves.stream().allMatch(MOVE_DIRECTION::isMoveCommand)) {
+            return Optional.of("unknown action");
+        }
+        if (moves.isEmpty()) {
+            // ending the run is the one decision that can not be corrected by the next step
+            return Optional.of("claims the goal is achieved");
+        }
+        if (response.confidence() == null || response.confidence() < properties.minConfidence()) {
+            return Optional.of("low confidence");
+        }
+        var previousMoves = recentActions.stream()
+            .map(action -> action.trim().toUpperCase(Locale.ROOT))
+            .filter(MOVE_DIRECTION::isMoveCommand)
+            .toList();
+        if (!previousMoves.isEmpty()
+            && MOVE_DIRECTION.valueOf(previousMoves.getLast()).opposite() == MOVE_DIRECTION.valueOf(moves.getFirst())) {
+            return Optional.of("reverses the previous move");
+        }
+        return Optional.empty();
+    }
+
+    private void escalated(String reason) {
+        log.info("Escalating to {}: {}", CLOUD, reason);
+        meterRegistry.counter("kale_kaj_driver.cascade.escalations", "reason", reason).increment();
+    }
+
+    private Counter answers(String tier) {
+        return Counter.builder("kale_kaj_driver.cascade.answers")
+            .tag("tier", tier)
+            .register(meterRegistry);
+    }
+}
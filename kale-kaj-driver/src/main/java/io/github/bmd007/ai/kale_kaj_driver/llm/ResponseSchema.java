@@ -0,0 +1,50 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.bmd007.ai.kale_kaj_driver.RpiService.MOVE_DIRECTION;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * JSON schema of the answer the agent expects, for providers that constrain decoding to a schema.
+ * Properties are declared actions first, grammar based decoders follow that order and the car can start moving early.
+ */
+public final class ResponseSchema {
+
+    public static final Map<String, Object> SCHEMA = schema(UnaryOperator.identity());
+    /**
+     * The same schema in Gemini's OpenAPI dialect, as JSON. Its types are the upper case names of an enum.
+     */
+    public static final String GEMINI = json(schema(type -> type.toUpperCase(Locale.ROOT)));
+
+    private ResponseSchema() {
+    }
+
+    private static Map<String, Object> schema(UnaryOperator<String> type) {
+        var actionNames = Arrays.stream(MOVE_DIRECTION.values()).map(Enum::name).toList();
+        var properties = new LinkedHashMap<String, Object>();
+        properties.put("actions", Map.of(
+            "type", type.apply("array"),
+            "items", Map.of("type", type.apply("string"), "enum", actionNames)));
+        properties.put("confidence", Map.of("type", type.apply("number"), "minimum", 0, "maximum", 1));
+        properties.put("thought", Map.of("type", type.apply("string")));
+        return Map.of(
+            "type", type.apply("object"),
+            "properties", properties,
+            "required", List.of("actions", "confidence", "thought"));
+    }
+
+    private static String json(Map<String, Object> schema) {
+        try {
+            return new ObjectMapper().writeValueAsString(schema);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("A schema of maps and lists is always serializable", e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.bmd007.ai.kale_kaj_driver.AiResource.LlmResponse;
+import io.github.bmd007.ai.kale_kaj_driver.RpiService.MOVE_DIRECTION;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.ResponseParsed;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a parsed LLM answer into a usable response. Answers that are not valid against the schema get a cheap local repair,
+ * e.g. a truncated object or unknown actions, instead of ending the run or costing another model call.
+ */
+@Slf4j
+@Component
+public class ResponseValidator {
+
+    private static final Pattern ACTIONS = Pattern.compile("\"actions\"\\s*:\\s*\\[([^\\]]*)(\\]?)");
+    private static final Pattern THOUGHT = Pattern.compile("\"thought\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)");
+    private static final Pattern MOVE = Pattern.compile("\\b(FORWARD|BACKWARD|LEFT|RIGHT)\\b", Pattern.CASE_INSENSITIVE);
+    // the usual rule of thumb for English text and JSON
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary answerTokens;
+
+    public ResponseValidator(ObjectMapper objectMapper, MeterRegistry meterRegistry) {
+        this.objectMapper = objectMapper;
+        this.meterRegistry = meterRegistry;
+        this.answerTokens = DistributionSummary.builder("kale_kaj_driver.answer.tokens")
+            .description("Estimated output tokens of one LLM answer")
+            .baseUnit("tokens")
+            .publishPercentiles(0.5, 0.95)
+            .register(meterRegistry);
+    }
+
+    public enum Outcome {
+        VALID,
+        REPAIRED,
+        UNUSABLE
+    }
+
+    /**
+     * @param response null when the answer was unusable
+     * @param json     the response in canonical form, what goes into the history so the model sees the expected format
+     */
+    public record Validated(LlmResponse response, String json, Outcome outcome) {
+    }
+
+    public Validated validate(ResponseParsed parsed) {
+        answerTokens.record((parsed.json().length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN);
+        Validated validated;
+        if (parsed.wellFormed() && parsed.actions().stream().allMatch(MOVE_DIRECTION::isMoveCommand)) {
+            validated = new Validated(new LlmResponse(parsed.thought(), parsed.actions()), parsed.json(), Outcome.VALID);
+        } else {
+            validated = repair(parsed);
+        }
+        meterRegistry.counter("kale_kaj_driver.answers", "outcome", validated.outcome().name().toLowerCase(Locale.ROOT))
+            .increment();
+        return validated;
+    }
+
+    private Validated repair(ResponseParsed parsed) {
+        var response = readLeniently(parsed.json());
+        if (response == null) {
+            response = extract(parsed.json());
+        }
+        if (response == null) {
+            log.warn("Could not repair LLM answer: {}", parsed.json());
+            return new Validated(null, parsed.json(), Outcome.UNUSABLE);
+        }
+        log.info("Repaired LLM answer to {}", response.actions());
+        return new Validated(response, canonical(response), Outcome.REPAIRED);
+    }
+
+    private LlmResponse readLeniently(String json) {
+        try {
+            var response = objectMapper.readValue(json, LlmResponse.class);
+            if (response.actions() == null) {
+                return null;
+            }
+            var actions = normalize(response.actions());
+            return salvaged(response.actions().isEmpty(), actions) ? new LlmResponse(response.thought(), actions) : null;
+        } catch (JsonProcessingException e) {
+            return null;
+        }
+    }
+
+    // for truncated or otherwise broken JSON, as long as the actions array was started it can be salvaged
+    private static LlmResponse extract(String answer) {
+        Matcher actions = ACTIONS.matcher(answer);
+        if (!actions.find()) {
+            return null;
+        }
+        Matcher moves = MOVE.matcher(actions.group(1));
+        var found = normalize(moves.results().map(match -> match.group(1)).toList());
+        // only a closed array is known to be empty, one cut off right after its bracket may have been about to list moves
+        boolean closedEmpty = !actions.group(2).isEmpty() && actions.group(1).isBlank();
+        if (!salvaged(closedEmpty, found)) {
+            return null;
+        }
+        Matcher thought = THOUGHT.matcher(answer);
+        return new LlmResponse(thought.find() ? thought.group(1) : "", found);
+    }
+
+    // nothing but unknown actions must not turn into an empty list, that would end the run as if the goal was achieved
+    private static boolean salvaged(boolean originallyEmpty, List<String> actions) {
+        return originallyEmpty || !actions.isEmpty();
+    }
+
+    private static List<String> normalize(List<String> actions) {
+        return actions.stream()
+            .filter(Objects::nonNull)
+            .map(action -> action.trim().toUpperCase(Locale.ROOT))
+            .filter(MOVE_DIRECTION::isMoveCommand)
+            .toList();
+    }
+
+    private String canonical(LlmResponse response) {
+        try {
+            return objectMapper.writeValueAsString(response);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("LlmResponse is always serializable", e);
+        }
+    }
+}
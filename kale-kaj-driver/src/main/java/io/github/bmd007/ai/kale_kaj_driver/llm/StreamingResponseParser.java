@@ -0,0 +1,152 @@
+package io.github.bmd007.ai.kale_kaj_driver.llm;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.async.ByteArrayFeeder;
+import lombok.extern.slf4j.Slf4j;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses the {@code {"actions": [...], "thought": "..."}} answer of the LLM while it is being streamed.
+ * Every element of the actions array is emitted the moment its closing quote arrives,
+ * the complete response is emitted last, once the stream is over.
+ * Text around the JSON object, such as markdown fences, is ignored.
+ */
+@Slf4j
+public final class StreamingResponseParser {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private StreamingResponseParser() {
+    }
+
+    public sealed interface Event permits ActionParsed, ResponseParsed, LlmCallReport {
+    }
+
+    public record ActionParsed(int index, String action) implements Event {
+    }
+
+    /**
+     * @param json       the outermost JSON object of the answer, or the whole answer when there is none
+     * @param confidence the model's own estimate between 0 and 1, null when it did not give one
+     * @param wellFormed whether the incremental parse saw a complete, valid object; when false, thought and actions may be partial
+     */
+    public record ResponseParsed(String json, String thought, List<String> actions, Double confidence, boolean wellFormed) implements Event {
+    }
+
+    public static Flux<Event> parse(Flux<String> chunks) {
+        return Flux.defer(() -> {
+            var state = new State();
+            return chunks.concatMapIterable(state::feed)
+                .concatWith(Mono.fromCallable(state::finish));
+        });
+    }
+
+    private static final class State {
+        private final StringBuilder raw = new StringBuilder();
+        private final List<String> actions = new ArrayList<>();
+        private final JsonParser parser;
+        private final ByteArrayFeeder feeder;
+        private String thought;
+        private Double confidence;
+        private String currentField;
+        private int depth;
+        private boolean inActions;
+        private boolean started;
+        private boolean done;
+        private boolean failed;
+
+        private State() {
+            try {
+                this.parser = JSON_FACTORY.createNonBlockingByteArrayParser();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.feeder = (ByteArrayFeeder) parser.getNonBlockingInputFeeder();
+        }
+
+        private List<Event> feed(String chunk) {
+            raw.append(chunk);
+            if (done || failed) {
+                return List.of();
+            }
+            String input = chunk;
+            if (!started) {
+                int objectStart = chunk.indexOf('{');
+                if (objectStart < 0) {
+                    return List.of();
+                }
+                started = true;
+                input = chunk.substring(objectStart);
+            }
+            byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+            try {
+                feeder.feedInput(bytes, 0, bytes.length);
+                return drain();
+            } catch (IOException e) {
+                // keep collecting, the complete answer still gets the lenient treatment at the end
+                log.debug("Streamed LLM answer is not valid JSON, falling back to parsing it as a whole: {}", e.getMessage());
+                failed = true;
+                return List.of();
+            }
+        }
+
+        private List<Event> drain() throws IOException {
+            List<Event> events = new ArrayList<>(1);
+            JsonToken token;
+            while (!done && (token = parser.nextToken()) != null && token != JsonToken.NOT_AVAILABLE) {
+                switch (token) {
+                    case START_OBJECT -> depth++;
+                    case START_ARRAY -> {
+                        depth++;
+                        inActions = depth == 2 && "actions".equals(currentField);
+                    }
+                    case END_ARRAY, END_OBJECT -> {
+                        depth--;
+                        inActions = false;
+                        done = depth == 0;
+                    }
+                    case FIELD_NAME -> {
+                        if (depth == 1) {
+                            currentField = parser.currentName();
+                        }
+                    }
+                    case VALUE_STRING -> {
+                        if (inActions && depth == 2) {
+                            actions.add(parser.getText());
+                            events.add(new ActionParsed(actions.size() - 1, parser.getText()));
+                        } else if (depth == 1 && "thought".equals(currentField)) {
+                            thought = parser.getText();
+                        }
+                    }
+                    case VALUE_NUMBER_INT, VALUE_NUMBER_FLOAT -> {
+                        if (depth == 1 && "confidence".equals(currentField)) {
+                            confidence = parser.getDoubleValue();
+                        }
+                    }
+                    default -> {
+                    }
+                }
+            }
+            return events;
+        }
+
+        private ResponseParsed finish() {
+            String json = raw.toString().trim();
+            int jsonStart = json.indexOf("{");
+            int jsonEnd = json.lastIndexOf("}");
+            if (jsonStart >= 0 && jsonEnd > jsonStart) {
+                json = json.substring(jsonStart, jsonEnd + 1);
+            }
+            return new ResponseParsed(json, thought, List.copyOf(actions), confidence, done && !failed);
+        }
+    }
+}
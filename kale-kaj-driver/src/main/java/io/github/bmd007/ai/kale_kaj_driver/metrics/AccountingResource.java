@@ -0,0 +1,30 @@
+package io.github.bmd007.ai.kale_kaj_driver.metrics;
+
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.Map;
+
+@RestController
+public class AccountingResource {
+
+    private final CostLedger costLedger;
+
+    public AccountingResource(CostLedger costLedger) {
+        this.costLedger = costLedger;
+    }
+
+    public record Accounting(Map<String, CostLedger.Totals> sessions, Map<String, CostLedger.Totals> models) {
+    }
+
+    @GetMapping("/accounting")
+    public Accounting accounting() {
+        return new Accounting(costLedger.perSession(), costLedger.perModel());
+    }
+
+    @GetMapping("/accounting/sessions/{sessionId}")
+    public CostLedger.Totals session(@PathVariable String sessionId) {
+        return costLedger.session(sessionId);
+    }
+}
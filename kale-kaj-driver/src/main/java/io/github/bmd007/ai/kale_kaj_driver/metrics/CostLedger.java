@@ -0,0 +1,132 @@
+package io.github.bmd007.ai.kale_kaj_driver.metrics;
+
+import io.github.bmd007.ai.kale_kaj_driver.llm.LlmCallReport;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Totals of the step breakdowns, per session and per model, served by {@link AccountingResource}.
+ * Per model totals are also exported as metrics, per session ones are not, session ids would make the tags unbounded.
+ */
+@Component
+public class CostLedger {
+
+    // sessions are kept after they closed, the cost of a finished run is the interesting one
+    private static final int MAX_SESSIONS = 100;
+
+    private final PricingProperties pricing;
+    private final MeterRegistry meterRegistry;
+    private final Map<String, Totals> perModel = new ConcurrentHashMap<>();
+    private final Map<String, Totals> perSession = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Totals> eldest) {
+            return size() > MAX_SESSIONS;
+        }
+    };
+
+    public CostLedger(PricingProperties pricing, MeterRegistry meterRegistry) {
+        this.pricing = pricing;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @param discardedCost the part of the cost spent on speculative plans that were thrown away, a price of pipelining
+     */
+    public record Totals(long steps, long calls, long inputTokens, long outputTokens, long imageTokens, double cost,
+                         long llmMillis, long actuationMillis, double discardedCost) {
+
+        private static final Totals EMPTY = new Totals(0, 0, 0, 0, 0, 0, 0, 0, 0);
+
+        private Totals plus(Totals other) {
+            return new Totals(steps + other.steps, calls + other.calls, inputTokens + other.inputTokens,
+                outputTokens + other.outputTokens, imageTokens + other.imageTokens, cost + other.cost,
+                llmMillis + other.llmMillis, actuationMillis + other.actuationMillis, discardedCost + other.discardedCost);
+        }
+    }
+
+    public double cost(LlmCallReport report, long estimatedInputTokens, long estimatedOutputTokens) {
+        return pricing.cost(report.model(),
+            report.inputTokens() == null ? estimatedInputTokens : report.inputTokens(),
+            report.outputTokens() == null ? estimatedOutputTokens : report.outputTokens());
+    }
+
+    public void record(String sessionId, StepBreakdown step, List<LlmCallReport> calls,
+                       long estimatedInputTokens, long estimatedOutputTokens) {
+        long actuation = step.actuationMillis() == null ? 0 : step.actuationMillis();
+        synchronized (perSession) {
+            perSession.merge(sessionId, new Totals(1, calls.size(), step.inputTokens(), step.outputTokens(),
+                step.imageTokens(), step.cost(), step.llmMillis(), actuation, 0), Totals::plus);
+        }
+        recordCalls(calls, estimatedInputTokens, estimatedOutputTokens, false);
+    }
+
+    /**
+     * Books the calls behind a speculative plan that was thrown away instead of acted on. They were paid for all the same,
+     * but they are no step of the session. A call cancelled before its provider reported usage can not be booked.
+     */
+    public void recordDiscarded(String sessionId, List<LlmCallReport> calls, long estimatedInputTokens, long estimatedOutputTokens) {
+        if (calls.isEmpty()) {
+            return;
+        }
+        var totals = recordCalls(calls, estimatedInputTokens, estimatedOutputTokens, true);
+        synchronized (perSession) {
+            perSession.merge(sessionId, new Totals(0, totals.calls(), totals.inputTokens(), totals.outputTokens(),
+                0, totals.cost(), 0, 0, totals.cost()), Totals::plus);
+        }
+    }
+
+    private Totals recordCalls(List<LlmCallReport> calls, long estimatedInputTokens, long estimatedOutputTokens,
+                               boolean discarded) {
+        var totals = Totals.EMPTY;
+        for (LlmCallReport call : calls) {
+            long input = call.inputTokens() == null ? estimatedInputTokens : call.inputTokens();
+            long output = call.outputTokens() == null ? estimatedOutputTokens : call.outputTokens();
+            double cost = pricing.cost(call.model(), input, output);
+            var booked = new Totals(0, 1, input, output, 0, cost, call.total().toMillis(), 0, discarded ? cost : 0);
+            totals = totals.plus(booked);
+            perModel.merge(call.model(), booked, Totals::plus);
+            meterRegistry.counter("kale_kaj_driver.llm.tokens", "model", call.model(), "type", "input").increment(input);
+            meterRegistry.counter("kale_kaj_driver.llm.tokens", "model", call.model(), "type", "output").increment(output);
+            meterRegistry.counter("kale_kaj_driver.llm.cost", "model", call.model()).increment(cost);
+            Timer.builder("kale_kaj_driver.llm.call.duration")
+                .tag("model", call.model())
+                .register(meterRegistry)
+                .record(call.total());
+            if (discarded) {
+                meterRegistry.counter("kale_kaj_driver.llm.discarded.cost", "model", call.model()).increment(cost);
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * Books the moves of a step that was recorded before they ran.
+     */
+    public void recordActuation(String sessionId, long actuationMillis) {
+        synchronized (perSession) {
+            perSession.merge(sessionId, new Totals(0, 0, 0, 0, 0, 0, 0, actuationMillis, 0), Totals::plus);
+        }
+    }
+
+    public Map<String, Totals> perSession() {
+        synchronized (perSession) {
+            return Map.copyOf(perSession);
+        }
+    }
+
+    public Map<String, Totals> perModel() {
+        return Map.copyOf(perModel);
+    }
+
+    public Totals session(String sessionId) {
+        synchronized (perSession) {
+            return perSession.getOrDefault(sessionId, Totals.EMPTY);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package io.github.bmd007.ai.kale_kaj_driver.metrics;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.util.Map;
+
+/**
+ * Token prices per model, the same figures as the {@code PerTokenPricingModel}s of the agentic module.
+ * Models without a price, like the local Ollama one, cost nothing.
+ */
+@ConfigurationProperties("kale-kaj-driver.pricing")
+public record PricingProperties(@DefaultValue Map<String, ModelPrice> models) {
+
+    public record ModelPrice(double inputPerMillion, double outputPerMillion) {
+    }
+
+    public double cost(String model, long inputTokens, long outputTokens) {
+        var price = models.get(model);
+        if (price == null) {
+            return 0;
+        }
+        return (inputTokens * price.inputPerMillion() + outputTokens * price.outputPerMillion()) / 1_000_000;
+    }
+}
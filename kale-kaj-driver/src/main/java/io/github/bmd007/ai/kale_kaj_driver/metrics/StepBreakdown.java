@@ -0,0 +1,30 @@
+package io.github.bmd007.ai.kale_kaj_driver.metrics;
+
+/**
+ * Where the time and money of one agent step went. Times are in milliseconds.
+ * @param firstTokenMillis from asking the LLM to its first streamed chunk, of the call that gave the answer
+ * @param llmMillis        from asking to the complete answer, escalations and hedges included
+ * @param actuationMillis  moving the car, null when the moves never ran, e.g. the last step of a run
+ * @param model            the models called, in order, joined by {@code >} when the answer was escalated
+ * @param inputTokens      as reported by the providers, estimated where they reported nothing
+ * @param imageTokens      estimated share of the input tokens taken by the frame
+ * @param cost             in USD, over all the calls of the step
+ */
+public record StepBreakdown(
+    long imageFetchMillis,
+    long preprocessingMillis,
+    long firstTokenMillis,
+    long llmMillis,
+    long parseMillis,
+    Long actuationMillis,
+    String model,
+    long inputTokens,
+    long outputTokens,
+    long imageTokens,
+    double cost) {
+
+    public StepBreakdown withActuationMillis(long actuationMillis) {
+        return new StepBreakdown(imageFetchMillis, preprocessingMillis, firstTokenMillis, llmMillis, parseMillis,
+            actuationMillis, model, inputTokens, outputTokens, imageTokens, cost);
+    }
+}
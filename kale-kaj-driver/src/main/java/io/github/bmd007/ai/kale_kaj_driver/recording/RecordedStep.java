@@ -0,0 +1,33 @@
+package io.github.bmd007.ai.kale_kaj_driver.recording;
+
+import io.github.bmd007.ai.kale_kaj_driver.llm.LlmCallReport;
+import io.github.bmd007.ai.kale_kaj_driver.metrics.StepBreakdown;
+
+import java.util.List;
+
+/**
+ * One step of a recorded run, as the loop decided it.
+ *
+ * @param prompt the messages sent to the LLM as text, images as placeholders, null when no LLM was asked
+ * @param answer the raw answer of the LLM before validation, null when no LLM answered
+ * @param calls  every LLM call of the step, escalations included
+ */
+public record RecordedStep(
+    int iteration,
+    Source source,
+    String prompt,
+    String answer,
+    List<LlmCallReport> calls,
+    String thought,
+    List<String> actions,
+    boolean completed,
+    StepBreakdown breakdown) {
+
+    public enum Source {
+        LLM,
+        FAST_PATH,
+        CACHE,
+        // no answer within the step budget
+        FALLBACK
+    }
+}
@@ -0,0 +1,21 @@
+package io.github.bmd007.ai.kale_kaj_driver.recording;
+
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * A run log read back into memory.
+ *
+ * @param frames the camera frame every iteration was decided on, as it came from the robot
+ * @param steps  by iteration
+ */
+public record Recording(
+    String sessionId,
+    String goal,
+    boolean pipelined,
+    Instant startedAt,
+    Map<Integer, Frame> frames,
+    Map<Integer, RecordedStep> steps) {
+}
@@ -0,0 +1,16 @@
+package io.github.bmd007.ai.kale_kaj_driver.recording;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.nio.file.Path;
+
+/**
+ * @param enabled   write a run log of every agent session
+ * @param directory where the run logs go, one file per session named after its id
+ */
+@ConfigurationProperties("kale-kaj-driver.recording")
+public record RecordingProperties(
+    @DefaultValue("false") boolean enabled,
+    @DefaultValue("recordings") Path directory) {
+}
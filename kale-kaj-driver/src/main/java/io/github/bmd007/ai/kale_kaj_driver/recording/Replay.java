@@ -0,0 +1,93 @@
+package io.github.bmd007.ai.kale_kaj_driver.recording;
+
+import io.github.bmd007.ai.kale_kaj_driver.AiResource.AgentStep;
+import io.github.bmd007.ai.kale_kaj_driver.AiResource.LlmResponse;
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser;
+import io.github.bmd007.ai.kale_kaj_driver.llm.StreamingResponseParser.Event;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Plays a {@link Recording} back through the agent loop: the recorded frames stand in for the camera,
+ * the recorded raw answers for the LLM and the recorded cache hits for the decision cache, nothing moves and nothing waits.
+ * Parsing, validation and the control logic run for real, so a replay shows whether they still decide the same way.
+ * Not thread safe, steps of one session are checked one after the other.
+ */
+public class Replay {
+
+    private final Recording recording;
+    private final List<Mismatch> mismatches = new ArrayList<>();
+    private int replayedSteps;
+
+    public record Mismatch(int iteration, List<String> recordedActions, List<String> replayedActions,
+                           boolean recordedCompleted, boolean replayedCompleted) {
+    }
+
+    /**
+     * @param recordedSteps steps in the recording
+     * @param replayedSteps steps the replay got through, fewer when it stopped early
+     */
+    public record Summary(String recordedSessionId, int recordedSteps, int replayedSteps, List<Mismatch> mismatches) {
+    }
+
+    public Replay(Recording recording) {
+        this.recording = recording;
+    }
+
+    public Recording recording() {
+        return recording;
+    }
+
+    public int steps() {
+        return recording.steps().size();
+    }
+
+    /**
+     * The recorded frame of the iteration, received just now, so it is never older than the loop tolerates.
+     */
+    public Mono<Frame> frame(int iteration) {
+        return Mono.justOrEmpty(recording.frames().get(iteration))
+            .map(frame -> new Frame(frame.sequence(), Instant.now(), frame.jpeg()))
+            .switchIfEmpty(Mono.error(() -> new IllegalStateException("The recording has no frame for iteration " + iteration)));
+    }
+
+    /**
+     * The recorded answer streamed as parser events, then the reports of the calls it took.
+     * An iteration that was not answered by the LLM in the recording times out, as the fallback did.
+     */
+    public Flux<Event> answer(int iteration) {
+        var step = recording.steps().get(iteration);
+        if (step == null || step.answer() == null) {
+            return Flux.error(new TimeoutException("No recorded answer for iteration " + iteration));
+        }
+        return StreamingResponseParser.parse(Flux.just(step.answer()))
+            .concatWith(Flux.fromIterable(step.calls()));
+    }
+
+    public Optional<LlmResponse> cacheHit(int iteration) {
+        return Optional.ofNullable(recording.steps().get(iteration))
+            .filter(step -> step.source() == RecordedStep.Source.CACHE)
+            .map(step -> new LlmResponse(step.thought(), step.actions()));
+    }
+
+    public void check(AgentStep step) {
+        replayedSteps++;
+        var recorded = recording.steps().get(step.iteration());
+        if (recorded == null) {
+            mismatches.add(new Mismatch(step.iteration(), null, step.actions(), false, step.completed()));
+        } else if (!recorded.actions().equals(step.actions()) || recorded.completed() != step.completed()) {
+            mismatches.add(new Mismatch(step.iteration(), recorded.actions(), step.actions(), recorded.completed(), step.completed()));
+        }
+    }
+
+    public Summary summary() {
+        return new Summary(recording.sessionId(), steps(), replayedSteps, List.copyOf(mismatches));
+    }
+}
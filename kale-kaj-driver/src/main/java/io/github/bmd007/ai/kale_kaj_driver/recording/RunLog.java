@@ -0,0 +1,265 @@
+package io.github.bmd007.ai.kale_kaj_driver.recording;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+import io.github.bmd007.ai.kale_kaj_driver.llm.LlmCallReport;
+import io.github.bmd007.ai.kale_kaj_driver.metrics.StepBreakdown;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Binary, gzip compressed, append only log of one agent session.
+ * Records are a type byte followed by their fields, every record is flushed as a complete gzip block,
+ * so a log cut short by a crash still reads up to its last complete record.
+ * A frame is stored once, the first time its SHA-256 shows up, later records refer to it by hash:
+ * a car standing still sends the same picture over and over, and JPEG hardly compresses.
+ */
+@Slf4j
+final class RunLog {
+
+    private static final int MAGIC = 0x4B4B5255; // KKRU
+    // version 2 tells which of the observations of an iteration its step was based on
+    private static final int VERSION = 2;
+    private static final byte HEADER = 1;
+    private static final byte FRAME = 2;
+    private static final byte OBSERVATION = 3;
+    private static final byte STEP = 4;
+    private static final byte END = 5;
+    private static final int HASH_LENGTH = 32;
+    private static final HexFormat HEX = HexFormat.of();
+
+    private RunLog() {
+    }
+
+    /**
+     * Not thread safe, the recorder writes all logs from one thread.
+     */
+    static final class Writer implements Closeable {
+        private final DataOutputStream output;
+        private final ObjectMapper objectMapper;
+        private final MessageDigest sha256 = sha256();
+        private final Set<String> storedFrames = new HashSet<>();
+
+        private Writer(OutputStream output, ObjectMapper objectMapper) {
+            this.output = new DataOutputStream(output);
+            this.objectMapper = objectMapper;
+        }
+
+        static Writer create(Path file, ObjectMapper objectMapper) throws IOException {
+            var output = new GZIPOutputStream(Files.newOutputStream(file, StandardOpenOption.CREATE_NEW), 64 * 1024, true);
+            return new Writer(output, objectMapper);
+        }
+
+        void header(String sessionId, String goal, boolean pipelined, Instant startedAt) throws IOException {
+            output.writeByte(HEADER);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            writeString(sessionId);
+            writeString(goal);
+            output.writeBoolean(pipelined);
+            output.writeLong(startedAt.toEpochMilli());
+            output.flush();
+        }
+
+        void observation(int iteration, Frame frame) throws IOException {
+            byte[] hash = sha256.digest(frame.jpeg());
+            if (storedFrames.add(HEX.formatHex(hash))) {
+                output.writeByte(FRAME);
+                output.write(hash);
+                output.writeInt(frame.jpeg().length);
+                output.write(frame.jpeg());
+            }
+            output.writeByte(OBSERVATION);
+            output.writeInt(iteration);
+            output.writeLong(frame.sequence());
+            output.writeLong(frame.receivedAt().toEpochMilli());
+            output.write(hash);
+            output.flush();
+        }
+
+        void step(RecordedStep step, Frame basedOn) throws IOException {
+            output.writeByte(STEP);
+            output.writeInt(step.iteration());
+            output.writeByte(step.source().ordinal());
+            writeString(step.prompt());
+            writeString(step.answer());
+            output.writeInt(step.calls().size());
+            for (LlmCallReport call : step.calls()) {
+                writeString(call.model());
+                output.writeInt(call.inputTokens() == null ? -1 : call.inputTokens());
+                output.writeInt(call.outputTokens() == null ? -1 : call.outputTokens());
+                output.writeLong(call.firstToken().toNanos());
+                output.writeLong(call.total().toNanos());
+            }
+            writeString(step.thought());
+            output.writeInt(step.actions().size());
+            for (String action : step.actions()) {
+                writeString(action);
+            }
+            output.writeBoolean(step.completed());
+            // the breakdown grows with the loop, JSON keeps older logs readable
+            writeString(step.breakdown() == null ? null : objectMapper.writeValueAsString(step.breakdown()));
+            output.writeLong(basedOn.sequence());
+            output.writeLong(basedOn.receivedAt().toEpochMilli());
+            output.flush();
+        }
+
+        void end(Instant endedAt) throws IOException {
+            output.writeByte(END);
+            output.writeLong(endedAt.toEpochMilli());
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+        private void writeString(String value) throws IOException {
+            if (value == null) {
+                output.writeInt(-1);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    static Recording read(Path file, ObjectMapper objectMapper) throws IOException {
+        try (var input = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (input.readByte() != HEADER || input.readInt() != MAGIC) {
+                throw new IOException(file + " is not a run log");
+            }
+            int version = input.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Run log version " + version + " of " + file + " is not supported");
+            }
+            String sessionId = readString(input);
+            String goal = readString(input);
+            boolean pipelined = input.readBoolean();
+            Instant startedAt = Instant.ofEpochMilli(input.readLong());
+
+            Map<String, byte[]> storedFrames = new HashMap<>();
+            Map<Integer, List<Frame>> observations = new HashMap<>();
+            Map<Integer, Frame> frames = new HashMap<>();
+            Map<Integer, RecordedStep> steps = new HashMap<>();
+            try {
+                while (true) {
+                    int type = input.read();
+                    if (type < 0 || type == END) {
+                        break;
+                    }
+                    switch (type) {
+                        case FRAME -> {
+                            String hash = HEX.formatHex(readBytes(input, HASH_LENGTH));
+                            storedFrames.put(hash, readBytes(input, input.readInt()));
+                        }
+                        case OBSERVATION -> {
+                            int iteration = input.readInt();
+                            long sequence = input.readLong();
+                            Instant receivedAt = Instant.ofEpochMilli(input.readLong());
+                            byte[] jpeg = storedFrames.get(HEX.formatHex(readBytes(input, HASH_LENGTH)));
+                            // the pipelined loop observes an iteration twice when it speculates, before and after the motion
+                            observations.computeIfAbsent(iteration, ignored -> new ArrayList<>())
+                                .add(new Frame(sequence, receivedAt, jpeg));
+                        }
+                        case STEP -> {
+                            var step = readStep(input, objectMapper);
+                            steps.put(step.iteration(), step);
+                            if (version >= 2) {
+                                long sequence = input.readLong();
+                                long receivedAt = input.readLong();
+                                observations.getOrDefault(step.iteration(), List.of()).stream()
+                                    .filter(frame -> frame.sequence() == sequence && frame.receivedAt().toEpochMilli() == receivedAt)
+                                    .findFirst()
+                                    .ifPresent(frame -> frames.put(step.iteration(), frame));
+                            }
+                        }
+                        default -> throw new IOException("Unknown record type " + type + " in " + file);
+                    }
+                }
+            } catch (EOFException e) {
+                log.warn("Run log {} ends in the middle of a record, reading it up to there", file);
+            }
+            // a version 1 log does not tell, and an iteration cut short has no step; the frame taken last is the likely one,
+            // it is the wrong one only for a kept speculative plan
+            observations.forEach((iteration, observed) -> frames.putIfAbsent(iteration, observed.getLast()));
+            return new Recording(sessionId, goal, pipelined, startedAt, frames, steps);
+        }
+    }
+
+    private static RecordedStep readStep(DataInputStream input, ObjectMapper objectMapper) throws IOException {
+        int iteration = input.readInt();
+        var source = RecordedStep.Source.values()[input.readByte()];
+        String prompt = readString(input);
+        String answer = readString(input);
+        int callCount = input.readInt();
+        List<LlmCallReport> calls = new ArrayList<>(callCount);
+        for (int i = 0; i < callCount; i++) {
+            String model = readString(input);
+            int inputTokens = input.readInt();
+            int outputTokens = input.readInt();
+            calls.add(new LlmCallReport(
+                model,
+                inputTokens < 0 ? null : inputTokens,
+                outputTokens < 0 ? null : outputTokens,
+                Duration.ofNanos(input.readLong()),
+                Duration.ofNanos(input.readLong())));
+        }
+        String thought = readString(input);
+        int actionCount = input.readInt();
+        List<String> actions = new ArrayList<>(actionCount);
+        for (int i = 0; i < actionCount; i++) {
+            actions.add(readString(input));
+        }
+        boolean completed = input.readBoolean();
+        String breakdown = readString(input);
+        return new RecordedStep(iteration, source, prompt, answer, List.copyOf(calls), thought, List.copyOf(actions), completed,
+            breakdown == null ? null : objectMapper.readValue(breakdown, StepBreakdown.class));
+    }
+
+    private static String readString(DataInputStream input) throws IOException {
+        int length = input.readInt();
+        return length < 0 ? null : new String(readBytes(input, length), StandardCharsets.UTF_8);
+    }
+
+    // a truncated log ends in an EOFException, not in a short array
+    private static byte[] readBytes(DataInputStream input, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package io.github.bmd007.ai.kale_kaj_driver.recording;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Writes a {@link RunLog} of every agent session, with the frames, prompts, raw answers and decisions of its steps.
+ * Hashing, compression and file IO run on a single writer thread, the loop only hands the records over.
+ * A failing log is dropped with a warning, recording never gets in the way of driving.
+ */
+@Slf4j
+@Component
+public class RunRecorder {
+
+    private static final String EXTENSION = ".run.gz";
+
+    private final RecordingProperties properties;
+    private final ObjectMapper objectMapper;
+    private final Scheduler writer = Schedulers.newSingle("run-recorder");
+    // only touched from the writer thread
+    private final Map<String, RunLog.Writer> logs = new HashMap<>();
+
+    public RunRecorder(RecordingProperties properties, ObjectMapper objectMapper) {
+        this.properties = properties;
+        this.objectMapper = objectMapper;
+    }
+
+    public void open(String sessionId, String goal, boolean pipelined) {
+        if (!properties.enabled()) {
+            return;
+        }
+        Instant startedAt = Instant.now();
+        writer.schedule(() -> {
+            try {
+                Files.createDirectories(properties.directory());
+                var runLog = RunLog.Writer.create(file(sessionId), objectMapper);
+                runLog.header(sessionId, goal, pipelined, startedAt);
+                logs.put(sessionId, runLog);
+            } catch (IOException e) {
+                log.warn("Could not start the run log of session {}, it is not recorded: {}", sessionId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * @param frame as it came from the robot, before preprocessing, so a replay goes through the whole pipeline again
+     */
+    public void observed(String sessionId, int iteration, Frame frame) {
+        write(sessionId, runLog -> runLog.observation(iteration, frame));
+    }
+
+    /**
+     * @param basedOn the frame the step was decided on, one of the frames observed for its iteration
+     */
+    public void step(String sessionId, RecordedStep step, Frame basedOn) {
+        write(sessionId, runLog -> runLog.step(step, basedOn));
+    }
+
+    public void close(String sessionId) {
+        if (!properties.enabled()) {
+            return;
+        }
+        Instant endedAt = Instant.now();
+        writer.schedule(() -> {
+            var runLog = logs.remove(sessionId);
+            if (runLog == null) {
+                return;
+            }
+            try (runLog) {
+                runLog.end(endedAt);
+            } catch (IOException e) {
+                log.warn("Could not finish the run log of session {}: {}", sessionId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Reads a run log back, blocking.
+     * @throws IllegalArgumentException when the session id is not a session id, it becomes part of a file name
+     */
+    public Recording load(String sessionId) throws IOException {
+        return RunLog.read(file(UUID.fromString(sessionId).toString()), objectMapper);
+    }
+
+    /**
+     * Ids of the sessions with a run log, oldest first, blocking.
+     */
+    public List<String> recordedSessions() throws IOException {
+        if (!Files.isDirectory(properties.directory())) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(properties.directory())) {
+            return files.filter(file -> file.getFileName().toString().endsWith(EXTENSION))
+                .sorted(Comparator.comparing(file -> file.toFile().lastModified()))
+                .map(file -> file.getFileName().toString())
+                .map(name -> name.substring(0, name.length() - EXTENSION.length()))
+                .toList();
+        }
+    }
+
+    private Path file(String sessionId) {
+        return properties.directory().resolve(sessionId + EXTENSION);
+    }
+
+    private void write(String sessionId, LogWrite write) {
+        if (!properties.enabled()) {
+            return;
+        }
+        writer.schedule(() -> {
+            var runLog = logs.get(sessionId);
+            if (runLog == null) {
+                return;
+            }
+            try {
+                write.to(runLog);
+            } catch (IOException e) {
+                log.warn("Could not write the run log of session {}, dropping it: {}", sessionId, e.getMessage());
+                logs.remove(sessionId);
+                try {
+                    runLog.close();
+                } catch (IOException ignored) {
+                    // the log is broken already
+                }
+            }
+        });
+    }
+
+    @PreDestroy
+    void shutdown() {
+        writer.schedule(() -> {
+            logs.forEach((sessionId, runLog) -> {
+                try (runLog) {
+                    runLog.end(Instant.now());
+                } catch (IOException e) {
+                    log.warn("Could not finish the run log of session {}: {}", sessionId, e.getMessage());
+                }
+            });
+            logs.clear();
+        });
+        writer.disposeGracefully().block(Duration.ofSeconds(5));
+    }
+
+    @FunctionalInterface
+    private interface LogWrite {
+        void to(RunLog.Writer runLog) throws IOException;
+    }
+}
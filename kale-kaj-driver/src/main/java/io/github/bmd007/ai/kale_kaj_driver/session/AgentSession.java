@@ -0,0 +1,130 @@
+package io.github.bmd007.ai.kale_kaj_driver.session;
+
+import io.github.bmd007.ai.kale_kaj_driver.recording.Replay;
+import io.github.bmd007.ai.kale_kaj_driver.vision.PerceptualHash;
+import org.springframework.ai.chat.messages.Message;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.UnaryOperator;
+
+/**
+ * State of one {@code /agent} run: its goal, conversation history and the frames its LLM saw.
+ * The agent loop touches it from whichever thread the reactive callbacks run on, so all access is synchronized.
+ */
+public class AgentSession {
+
+    private final String id;
+    private final String goal;
+    private final String robotId;
+    private final Replay replay;
+    private final Instant startedAt = Instant.now();
+    private final List<Message> history = new ArrayList<>();
+    // replays the latest frame, the dashboard usually subscribes after the first frame was taken
+    private final Sinks.Many<LlmFrame> frames = Sinks.many().replay().latest();
+    private PerceptualHash lastScene;
+    private List<String> lastActions = List.of();
+    private int consecutiveSkips;
+    private String shortfall;
+
+    AgentSession(String id, String goal, String robotId, Replay replay) {
+        this.id = id;
+        this.goal = goal;
+        this.robotId = robotId;
+        this.replay = replay;
+    }
+
+    public String id() {
+        return id;
+    }
+
+    public String goal() {
+        return goal;
+    }
+
+    /**
+     * @return the car the session drives, null for a replay which drives none
+     */
+    public String robotId() {
+        return robotId;
+    }
+
+    /**
+     * @return null unless the session plays a recording back instead of driving the car
+     */
+    public Replay replay() {
+        return replay;
+    }
+
+    public Instant startedAt() {
+        return startedAt;
+    }
+
+    public synchronized void addMessage(Message message) {
+        history.add(message);
+    }
+
+    public synchronized void compactHistory(UnaryOperator<List<Message>> compactor) {
+        var compacted = compactor.apply(List.copyOf(history));
+        history.clear();
+        history.addAll(compacted);
+    }
+
+    public synchronized List<Message> history() {
+        return List.copyOf(history);
+    }
+
+    /**
+     * Records the scene a step was based on and what the car did about it.
+     * @param skipped whether the step took the fast path instead of asking the LLM
+     */
+    public synchronized void rememberScene(PerceptualHash scene, List<String> actions, boolean skipped) {
+        this.lastScene = scene;
+        this.lastActions = List.copyOf(actions);
+        this.consecutiveSkips = skipped ? consecutiveSkips + 1 : 0;
+        this.shortfall = null;
+    }
+
+    /**
+     * Records what the car actually did about the last remembered scene, which is less than the plan when it stopped short.
+     * @param shortfall why the plan stopped short, for the next question; null when all of it was made
+     */
+    public synchronized void rememberMoves(List<String> made, String shortfall) {
+        this.lastActions = List.copyOf(made);
+        this.shortfall = shortfall;
+    }
+
+    public synchronized PerceptualHash lastScene() {
+        return lastScene;
+    }
+
+    public synchronized List<String> lastActions() {
+        return lastActions;
+    }
+
+    public synchronized int consecutiveSkips() {
+        return consecutiveSkips;
+    }
+
+    /**
+     * @return why the previous plan stopped short, null when it did not
+     */
+    public synchronized String shortfall() {
+        return shortfall;
+    }
+
+    public Flux<LlmFrame> frames() {
+        return frames.asFlux();
+    }
+
+    synchronized void emitFrame(LlmFrame frame) {
+        frames.tryEmitNext(frame);
+    }
+
+    synchronized void complete() {
+        frames.tryEmitComplete();
+    }
+}
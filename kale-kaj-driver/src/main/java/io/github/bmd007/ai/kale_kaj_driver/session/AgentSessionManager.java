@@ -0,0 +1,75 @@
+package io.github.bmd007.ai.kale_kaj_driver.session;
+
+import io.github.bmd007.ai.kale_kaj_driver.recording.Replay;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the running agent sessions, so several cars and goals can be driven from one instance
+ * without sharing history or dashboard frames.
+ */
+@Slf4j
+@Component
+public class AgentSessionManager {
+
+    private final Map<String, AgentSession> sessions = new ConcurrentHashMap<>();
+    // frames of every session, for dashboards that do not care which session they watch
+    private final Sinks.Many<LlmFrame> allFrames = Sinks.many().multicast().directBestEffort();
+
+    public AgentSession open(String goal, String robotId) {
+        var session = new AgentSession(UUID.randomUUID().toString(), goal, robotId, null);
+        sessions.put(session.id(), session);
+        log.info("Opened agent session {} on robot {} with goal: {}", session.id(), robotId, goal);
+        return session;
+    }
+
+    public AgentSession openReplay(Replay replay) {
+        var recording = replay.recording();
+        var session = new AgentSession(UUID.randomUUID().toString(), recording.goal(), null, replay);
+        sessions.put(session.id(), session);
+        log.info("Opened agent session {} replaying session {}", session.id(), recording.sessionId());
+        return session;
+    }
+
+    public void close(AgentSession session) {
+        if (sessions.remove(session.id()) != null) {
+            session.complete();
+            log.info("Closed agent session {}", session.id());
+        }
+    }
+
+    public Optional<AgentSession> find(String sessionId) {
+        return Optional.ofNullable(sessions.get(sessionId));
+    }
+
+    public Collection<AgentSession> sessions() {
+        return sessions.values();
+    }
+
+    public void publishFrame(AgentSession session, LlmFrame frame) {
+        session.emitFrame(frame);
+        synchronized (allFrames) {
+            allFrames.tryEmitNext(frame);
+        }
+    }
+
+    /**
+     * @param sessionId null for the frames of all sessions
+     */
+    public Flux<LlmFrame> frames(String sessionId) {
+        if (sessionId == null) {
+            return allFrames.asFlux();
+        }
+        return find(sessionId)
+            .map(AgentSession::frames)
+            .orElseGet(Flux::empty);
+    }
+}
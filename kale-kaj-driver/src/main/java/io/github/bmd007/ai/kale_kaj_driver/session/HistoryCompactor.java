@@ -0,0 +1,148 @@
+package io.github.bmd007.ai.kale_kaj_driver.session;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.ai.chat.messages.AssistantMessage;
+import org.springframework.ai.chat.messages.Message;
+import org.springframework.ai.chat.messages.UserMessage;
+import org.springframework.ai.content.Media;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the conversation history within a token budget instead of a message count.
+ * Only the newest frames keep their image, older questions are sent as text next to the answer they got,
+ * and once the budget is exceeded the oldest steps are folded into a rolling summary of their answers.
+ */
+@Slf4j
+@Component
+public class HistoryCompactor {
+
+    private static final String SUMMARY_PREFIX = "Summary of the earlier steps, oldest first:";
+    private static final String FRAME_OMITTED = " [camera frame omitted]";
+    // the usual rule of thumb for English text and JSON
+    private static final int CHARS_PER_TOKEN = 4;
+
+    private final HistoryProperties properties;
+    private final DistributionSummary promptBytes;
+    private final DistributionSummary promptTokens;
+
+    public HistoryCompactor(HistoryProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.promptBytes = DistributionSummary.builder("kale_kaj_driver.prompt.bytes")
+            .baseUnit("bytes")
+            .publishPercentiles(0.5, 0.95)
+            .register(meterRegistry);
+        this.promptTokens = DistributionSummary.builder("kale_kaj_driver.prompt.tokens")
+            .description("Estimated input tokens of one LLM call")
+            .baseUnit("tokens")
+            .publishPercentiles(0.5, 0.95)
+            .register(meterRegistry);
+    }
+
+    public List<Message> compact(List<Message> history) {
+        var compacted = dropOldImages(history);
+        String summary = null;
+        if (!compacted.isEmpty() && isSummary(compacted.getFirst())) {
+            summary = compacted.removeFirst().getText();
+        }
+        while (estimateTokens(compacted) + (summary == null ? 0 : tokens(summary)) > properties.tokenBudget()
+            && compacted.size() > 1) {
+            summary = fold(summary, removeOldestStep(compacted));
+        }
+        if (summary != null) {
+            compacted.addFirst(new UserMessage(summary));
+        }
+        return compacted;
+    }
+
+    /**
+     * Records the size of a prompt about to be sent.
+     * @return the estimated token count
+     */
+    public int measure(List<Message> prompt) {
+        long bytes = 0;
+        for (Message message : prompt) {
+            bytes += message.getText() == null ? 0 : message.getText().getBytes(StandardCharsets.UTF_8).length;
+            for (Media media : media(message)) {
+                if (media.getData() instanceof byte[] data) {
+                    bytes += data.length;
+                }
+            }
+        }
+        int tokens = estimateTokens(prompt);
+        promptBytes.record(bytes);
+        promptTokens.record(tokens);
+        return tokens;
+    }
+
+    public int estimateTokens(List<Message> messages) {
+        int total = 0;
+        for (Message message : messages) {
+            total += tokens(message.getText()) + media(message).size() * properties.tokensPerImage();
+        }
+        return total;
+    }
+
+    private List<Message> dropOldImages(List<Message> history) {
+        var compacted = new ArrayList<Message>(history.size());
+        int imagesKept = 0;
+        for (int i = history.size() - 1; i >= 0; i--) {
+            var message = history.get(i);
+            if (message instanceof UserMessage user && !user.getMedia().isEmpty()) {
+                if (imagesKept < properties.framesWithImage()) {
+                    imagesKept++;
+                } else {
+                    message = new UserMessage(user.getText() + FRAME_OMITTED);
+                }
+            }
+            compacted.addFirst(message);
+        }
+        return compacted;
+    }
+
+    // a step is a question and everything up to the next question
+    private static List<Message> removeOldestStep(List<Message> history) {
+        var step = new ArrayList<Message>();
+        step.add(history.removeFirst());
+        while (!history.isEmpty() && !(history.getFirst() instanceof UserMessage)) {
+            step.add(history.removeFirst());
+        }
+        return step;
+    }
+
+    private String fold(String summary, List<Message> step) {
+        var answer = step.stream()
+            .filter(AssistantMessage.class::isInstance)
+            .map(Message::getText)
+            .map(text -> text.replaceAll("\\s+", " ").trim())
+            .findFirst()
+            .orElse("no answer");
+        var lines = new ArrayList<>(summary == null ? List.of() : List.of(summary.split("\n")));
+        if (!lines.isEmpty()) {
+            lines.removeFirst();
+        }
+        lines.add("- " + answer);
+        while (lines.size() > 1 && String.join("\n", lines).length() > properties.maxSummaryLength()) {
+            lines.removeFirst();
+        }
+        log.debug("Folded a step into the history summary, {} steps summarised", lines.size());
+        return SUMMARY_PREFIX + "\n" + String.join("\n", lines);
+    }
+
+    private static boolean isSummary(Message message) {
+        return message instanceof UserMessage && message.getText() != null && message.getText().startsWith(SUMMARY_PREFIX);
+    }
+
+    private static List<Media> media(Message message) {
+        return message instanceof UserMessage user ? user.getMedia() : List.of();
+    }
+
+    private static int tokens(String text) {
+        return text == null ? 0 : (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+}
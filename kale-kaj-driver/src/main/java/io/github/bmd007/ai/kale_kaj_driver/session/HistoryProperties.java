@@ -0,0 +1,18 @@
+package io.github.bmd007.ai.kale_kaj_driver.session;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * @param framesWithImage  how many past frames keep their image in the history, older ones are sent as text only
+ * @param tokenBudget      estimated tokens the history may take, older steps are folded into a summary beyond this
+ * @param tokensPerImage   what one frame costs, Gemini counts 258 tokens for an image that fits in one 768px tile
+ * @param maxSummaryLength characters of the rolling summary, the oldest lines are dropped beyond this
+ */
+@ConfigurationProperties("kale-kaj-driver.history")
+public record HistoryProperties(
+    @DefaultValue("0") int framesWithImage,
+    @DefaultValue("1500") int tokenBudget,
+    @DefaultValue("258") int tokensPerImage,
+    @DefaultValue("1200") int maxSummaryLength) {
+}
@@ -0,0 +1,21 @@
+package io.github.bmd007.ai.kale_kaj_driver.session;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * A frame as it was sent to the LLM, relayed to the dashboard.
+ */
+public record LlmFrame(String sessionId, int iteration, long sequence, Instant timestamp, byte[] jpeg) {
+
+    public byte[] partHeaders() {
+        return ("--frame\r\n"
+            + "Content-Type: image/jpeg\r\n"
+            + "Content-Length: " + jpeg.length + "\r\n"
+            + "X-Session-Id: " + sessionId + "\r\n"
+            + "X-Iteration: " + iteration + "\r\n"
+            + "X-Frame-Sequence: " + sequence + "\r\n"
+            + "X-Timestamp: " + timestamp.toEpochMilli() + "\r\n"
+            + "\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+}
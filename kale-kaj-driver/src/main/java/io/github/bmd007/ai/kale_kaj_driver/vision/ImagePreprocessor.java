@@ -0,0 +1,249 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * Shrinks frames before they are sent to the LLM: crop to the region of interest, scale down,
+ * optionally drop the colour and stretch the contrast, then re-encode with the configured JPEG quality.
+ * Also computes the perceptual hash of the result, used to recognise a scene the LLM has already seen.
+ * Runs on its own bounded worker pool, every worker keeps its decoder, encoder and pixel buffers between frames.
+ */
+@Slf4j
+@Component
+public class ImagePreprocessor {
+
+    // Gemini counts an image with both sides up to 384px as one tile, bigger images are cut into 768px tiles,
+    // so the camera's 640x480 frames already cost a single tile and scaling them down saves bytes but no tokens
+    private static final int TOKENS_PER_TILE = 258;
+    private static final int SMALL_IMAGE_SIDE = 384;
+    private static final int TILE_SIDE = 768;
+    private static final int MAX_QUEUED_FRAMES = 16;
+
+    private final PreprocessingProperties properties;
+    private final Scheduler workers;
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+    private final Timer duration;
+    private final DistributionSummary bytesIn;
+    private final DistributionSummary bytesOut;
+    private final Counter tokensSaved;
+
+    public ImagePreprocessor(PreprocessingProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.workers = Schedulers.newBoundedElastic(properties.workers(), MAX_QUEUED_FRAMES, "image-preprocessor");
+        this.duration = Timer.builder("kale_kaj_driver.preprocessing.duration")
+            .register(meterRegistry);
+        this.bytesIn = DistributionSummary.builder("kale_kaj_driver.preprocessing.bytes.in")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.bytesOut = DistributionSummary.builder("kale_kaj_driver.preprocessing.bytes.out")
+            .baseUnit("bytes")
+            .register(meterRegistry);
+        this.tokensSaved = Counter.builder("kale_kaj_driver.preprocessing.tokens.saved")
+            .description("Estimated image tokens not sent to the LLM thanks to preprocessing")
+            .register(meterRegistry);
+    }
+
+    /**
+     * With preprocessing disabled the frame is still decoded, its perceptual hash is needed either way.
+     */
+    public Mono<PreprocessedFrame> preprocess(Frame frame) {
+        return Mono.fromCallable(() -> duration.record(() -> process(frame)))
+            .subscribeOn(workers)
+            .doOnNext(result -> {
+                bytesIn.record(frame.jpeg().length);
+                bytesOut.record(result.frame().jpeg().length);
+                tokensSaved.increment(result.tokensSaved());
+                log.debug("Preprocessed frame {} to {}x{}, saved {} bytes and about {} image tokens",
+                    frame.sequence(), result.width(), result.height(), result.bytesSaved(), result.tokensSaved());
+            })
+            .onErrorResume(e -> {
+                log.warn("Could not preprocess frame {}, sending it as is: {}", frame.sequence(), e.getMessage());
+                // a frame that could not be decoded is not read again, without a hash it always counts as a scene change
+                return Mono.just(new PreprocessedFrame(frame, 0, 0, 0, 0, null, Duration.ZERO, Duration.ZERO));
+            });
+    }
+
+    public static int estimateImageTokens(int width, int height) {
+        if (width <= SMALL_IMAGE_SIDE && height <= SMALL_IMAGE_SIDE) {
+            return TOKENS_PER_TILE;
+        }
+        int tiles = ceilDiv(width, TILE_SIDE) * ceilDiv(height, TILE_SIDE);
+        return tiles * TOKENS_PER_TILE;
+    }
+
+    private PreprocessedFrame process(Frame frame) {
+        long started = System.nanoTime();
+        var buffers = this.buffers.get();
+        try {
+            BufferedImage source = buffers.decode(frame.jpeg());
+            if (!properties.enabled()) {
+                return new PreprocessedFrame(frame, source.getWidth(), source.getHeight(), 0, 0, PerceptualHash.of(source),
+                    Duration.ZERO, Duration.ofNanos(System.nanoTime() - started));
+            }
+            int cropX = (int) (source.getWidth() * properties.cropLeft());
+            int cropY = (int) (source.getHeight() * properties.cropTop());
+            int cropWidth = Math.max(1, (int) (source.getWidth() * (1 - properties.cropLeft() - properties.cropRight())));
+            int cropHeight = Math.max(1, (int) (source.getHeight() * (1 - properties.cropTop() - properties.cropBottom())));
+            // a sub image shares the pixels of the decoded frame, cropping copies nothing
+            BufferedImage region = source.getSubimage(cropX, cropY, cropWidth, cropHeight);
+
+            int width = Math.min(cropWidth, properties.maxWidth());
+            int height = Math.max(1, cropHeight * width / cropWidth);
+            BufferedImage target = buffers.target(width, height,
+                properties.grayscale() ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D graphics = target.createGraphics();
+            try {
+                graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                graphics.drawImage(region, 0, 0, width, height, null);
+            } finally {
+                graphics.dispose();
+            }
+            if (properties.normalizeContrast()) {
+                stretchContrast(((DataBufferByte) target.getRaster().getDataBuffer()).getData(), buffers.histogram);
+            }
+
+            byte[] jpeg = buffers.encode(target, properties.quality() / 100f);
+            int tokensSaved = estimateImageTokens(source.getWidth(), source.getHeight()) - estimateImageTokens(width, height);
+            return new PreprocessedFrame(
+                new Frame(frame.sequence(), frame.receivedAt(), jpeg),
+                width,
+                height,
+                frame.jpeg().length - jpeg.length,
+                tokensSaved,
+                PerceptualHash.of(target),
+                Duration.ZERO,
+                Duration.ofNanos(System.nanoTime() - started));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Linear stretch of all channels together, so colours keep their balance.
+     * The darkest and brightest 1% are clipped, a single hot pixel should not decide the range.
+     */
+    private static void stretchContrast(byte[] pixels, int[] histogram) {
+        Arrays.fill(histogram, 0);
+        for (byte pixel : pixels) {
+            histogram[pixel & 0xFF]++;
+        }
+        int clip = pixels.length / 100;
+        int low = 0;
+        int clipped = histogram[low];
+        while (low < 255 && clipped <= clip) {
+            clipped += histogram[++low];
+        }
+        int high = 255;
+        clipped = histogram[high];
+        while (high > low && clipped <= clip) {
+            clipped += histogram[--high];
+        }
+        if (high - low < 16 || (low == 0 && high == 255)) {
+            // flat or already full range, stretching would only amplify noise
+            return;
+        }
+        byte[] table = new byte[256];
+        for (int value = 0; value < 256; value++) {
+            table[value] = (byte) Math.clamp((value - low) * 255L / (high - low), 0, 255);
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = table[pixels[i] & 0xFF];
+        }
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.dispose();
+    }
+
+    /**
+     * Per worker state. Image IO readers and writers are not thread safe,
+     * so every worker thread gets its own, together with the pixel buffers they fill.
+     */
+    private static final class Buffers {
+        private final ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        private final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream(64 * 1024);
+        private final int[] histogram = new int[256];
+        private BufferedImage decoded;
+        private BufferedImage target;
+
+        private BufferedImage decode(byte[] jpeg) throws IOException {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (decoded == null || decoded.getWidth() != width || decoded.getHeight() != height) {
+                    decoded = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(decoded);
+                try {
+                    return reader.read(0, param);
+                } catch (IllegalArgumentException | IIOException e) {
+                    // e.g. a grayscale JPEG cannot be decoded into a BGR buffer, let the reader allocate one
+                    input.seek(0);
+                    reader.setInput(input, true, true);
+                    return reader.read(0);
+                }
+            } finally {
+                reader.reset();
+            }
+        }
+
+        private BufferedImage target(int width, int height, int type) {
+            if (target == null || target.getWidth() != width || target.getHeight() != height || target.getType() != type) {
+                target = new BufferedImage(width, height, type);
+            }
+            return target;
+        }
+
+        private byte[] encode(BufferedImage image, float quality) throws IOException {
+            output.reset();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(image, null, null), param);
+            } finally {
+                writer.reset();
+            }
+            return output.toByteArray();
+        }
+    }
+}
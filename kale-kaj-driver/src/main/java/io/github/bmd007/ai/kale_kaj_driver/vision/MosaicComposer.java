@@ -0,0 +1,199 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.imageio.IIOException;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tiles several frames into one JPEG with the label of every tile burned in, so one LLM call sees the scene over time
+ * or from several angles instead of asking for another look. Tiles go left to right, top to bottom.
+ * Runs on its own bounded worker pool, every worker keeps its decoder, encoder and canvas between mosaics.
+ */
+@Slf4j
+@Component
+public class MosaicComposer {
+
+    private static final int MAX_QUEUED_MOSAICS = 16;
+    private static final Font LABEL_FONT = new Font(Font.SANS_SERIF, Font.BOLD, 16);
+
+    private final MosaicProperties properties;
+    private final Scheduler workers;
+    private final ThreadLocal<Buffers> buffers = ThreadLocal.withInitial(Buffers::new);
+    private final Timer duration;
+
+    public MosaicComposer(MosaicProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.workers = Schedulers.newBoundedElastic(properties.workers(), MAX_QUEUED_MOSAICS, "mosaic-composer");
+        this.duration = Timer.builder("kale_kaj_driver.mosaic.duration")
+            .register(meterRegistry);
+    }
+
+    /**
+     * @param label burned into the top left corner of the tile, e.g. the age of the frame
+     */
+    public record Tile(Frame frame, String label) {
+    }
+
+    public MosaicProperties properties() {
+        return properties;
+    }
+
+    /**
+     * @return a frame with the sequence number and arrival time of the last tile, the tile itself when there is only one
+     */
+    public Mono<Frame> compose(List<Tile> tiles) {
+        if (tiles.size() == 1) {
+            return Mono.just(tiles.getFirst().frame());
+        }
+        var last = tiles.getLast().frame();
+        return Mono.fromCallable(() -> duration.recordCallable(() -> new Frame(last.sequence(), last.receivedAt(), compose(tiles, buffers.get()))))
+            .subscribeOn(workers)
+            .doOnNext(mosaic -> log.debug("Composed a mosaic of {} frames up to frame {}, {} bytes",
+                tiles.size(), mosaic.sequence(), mosaic.jpeg().length))
+            .onErrorResume(e -> {
+                log.warn("Could not compose a mosaic, sending the last frame alone: {}", e.getMessage());
+                return Mono.just(last);
+            });
+    }
+
+    /**
+     * What the LLM needs to be told about the image it gets.
+     */
+    public String describe() {
+        return switch (properties.source()) {
+            case RECENT -> """
+                The image is a mosaic of the camera frames of the last %s, left to right and top to bottom from oldest \
+                to newest, each labelled with how long before the newest it was taken. The last tile is the current view."""
+                .formatted(properties.span());
+            case HEAD_SWEEP -> """
+                The image is a mosaic of camera views, left to right and top to bottom, each labelled with the angle \
+                the camera head was turned to. The car drives in the direction of the %d degrees view.""".formatted(properties.centreAngle());
+        };
+    }
+
+    private byte[] compose(List<Tile> tiles, Buffers buffers) throws IOException {
+        int columns = Math.min(properties.columns(), tiles.size());
+        int rows = (tiles.size() + columns - 1) / columns;
+        int tileWidth = properties.tileWidth();
+        int tileHeight = 0;
+        Graphics2D graphics = null;
+        try {
+            for (int i = 0; i < tiles.size(); i++) {
+                BufferedImage frame = buffers.decode(tiles.get(i).frame().jpeg());
+                if (graphics == null) {
+                    tileHeight = Math.max(1, frame.getHeight() * tileWidth / frame.getWidth());
+                    graphics = buffers.canvas(columns * tileWidth, rows * tileHeight).createGraphics();
+                    graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    graphics.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+                    graphics.setFont(LABEL_FONT);
+                    graphics.setColor(Color.BLACK);
+                    graphics.fillRect(0, 0, columns * tileWidth, rows * tileHeight);
+                }
+                int x = i % columns * tileWidth;
+                int y = i / columns * tileHeight;
+                graphics.drawImage(frame, x, y, tileWidth, tileHeight, null);
+                label(graphics, tiles.get(i).label(), x, y);
+            }
+        } finally {
+            if (graphics != null) {
+                graphics.dispose();
+            }
+        }
+        return buffers.encode(properties.quality() / 100f);
+    }
+
+    // white on a black box, readable on any scene
+    private static void label(Graphics2D graphics, String label, int x, int y) {
+        var metrics = graphics.getFontMetrics();
+        graphics.setColor(Color.BLACK);
+        graphics.fillRect(x, y, metrics.stringWidth(label) + 8, metrics.getHeight() + 4);
+        graphics.setColor(Color.WHITE);
+        graphics.drawString(label, x + 4, y + 2 + metrics.getAscent());
+    }
+
+    @PreDestroy
+    void shutdown() {
+        workers.dispose();
+    }
+
+    /**
+     * Per worker state, Image IO readers and writers are not thread safe.
+     */
+    private static final class Buffers {
+        private final ImageReader reader = ImageIO.getImageReadersByFormatName("jpeg").next();
+        private final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream(128 * 1024);
+        private BufferedImage decoded;
+        private BufferedImage canvas;
+
+        // the tile is drawn onto the canvas right away, so one decode buffer serves all tiles
+        private BufferedImage decode(byte[] jpeg) throws IOException {
+            try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (decoded == null || decoded.getWidth() != width || decoded.getHeight() != height) {
+                    decoded = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setDestination(decoded);
+                try {
+                    return reader.read(0, param);
+                } catch (IllegalArgumentException | IIOException e) {
+                    // e.g. a grayscale JPEG can not be decoded into a BGR buffer, let the reader allocate one
+                    input.seek(0);
+                    reader.setInput(input, true, true);
+                    return reader.read(0);
+                }
+            } finally {
+                reader.reset();
+            }
+        }
+
+        private BufferedImage canvas(int width, int height) {
+            if (canvas == null || canvas.getWidth() != width || canvas.getHeight() != height) {
+                canvas = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            }
+            return canvas;
+        }
+
+        private byte[] encode(float quality) throws IOException {
+            output.reset();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            try (ImageOutputStream stream = ImageIO.createImageOutputStream(output)) {
+                writer.setOutput(stream);
+                writer.write(null, new IIOImage(canvas, null, null), param);
+            } finally {
+                writer.reset();
+            }
+            return output.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * Several frames tiled into the one image the LLM gets per step.
+ * The mosaic is preprocessed like a single frame, raise {@code preprocessing.max-width} so the tiles keep their detail.
+ * @param source      where the tiles come from
+ * @param frames      {@link Source#RECENT} only, how many frames, the current one included
+ * @param span        {@link Source#RECENT} only, how far back the oldest frame is
+ * @param headChannel {@link Source#HEAD_SWEEP} only, servo channel of the camera head
+ * @param sweepAngles {@link Source#HEAD_SWEEP} only, head angles to look at, in tile order
+ * @param centreAngle {@link Source#HEAD_SWEEP} only, the head faces the driving direction at this angle, it is turned back there
+ * @param settle      {@link Source#HEAD_SWEEP} only, wait after turning the head before a frame counts
+ * @param columns     tiles per row
+ * @param tileWidth   width of one tile, the height follows the frames' aspect ratio
+ * @param quality     JPEG quality of the mosaic, 1 to 100
+ * @param workers     size of the worker pool the mosaics are composed on
+ */
+@ConfigurationProperties("kale-kaj-driver.mosaic")
+public record MosaicProperties(
+    @DefaultValue("false") boolean enabled,
+    @DefaultValue("RECENT") Source source,
+    @DefaultValue("4") int frames,
+    @DefaultValue("1s") Duration span,
+    @DefaultValue("0") String headChannel,
+    @DefaultValue({"130", "80", "30"}) List<Integer> sweepAngles,
+    @DefaultValue("80") int centreAngle,
+    @DefaultValue("300ms") Duration settle,
+    @DefaultValue("2") int columns,
+    @DefaultValue("320") int tileWidth,
+    @DefaultValue("80") int quality,
+    @DefaultValue("2") int workers) {
+
+    public enum Source {
+        /**
+         * The current frame and the ones before it, evenly spread over the span, e.g. the last second of motion.
+         */
+        RECENT,
+        /**
+         * A frame for every sweep angle of the camera head, for a look around before deciding.
+         * The car has to stand still for a sweep, so the pipelined loop does not speculate with it.
+         */
+        HEAD_SWEEP
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+/**
+ * 64 bit difference hash of a frame: the image is averaged down to 9x8 brightness cells
+ * and every bit tells whether a cell is brighter than its right neighbour.
+ * Small changes in exposure or JPEG noise flip few bits, a different scene flips about half of them.
+ */
+public record PerceptualHash(long bits) {
+
+    private static final int COLUMNS = 9;
+    private static final int ROWS = 8;
+
+    public int distance(PerceptualHash other) {
+        return Long.bitCount(bits ^ other.bits);
+    }
+
+    static PerceptualHash of(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long[] sums = new long[COLUMNS * ROWS];
+        int[] counts = new int[COLUMNS * ROWS];
+        int type = image.getType();
+        byte[] pixels = type == BufferedImage.TYPE_3BYTE_BGR || type == BufferedImage.TYPE_BYTE_GRAY
+            ? ((DataBufferByte) image.getRaster().getDataBuffer()).getData()
+            : null;
+        for (int y = 0; y < height; y++) {
+            int row = y * ROWS / height;
+            for (int x = 0; x < width; x++) {
+                int cell = row * COLUMNS + x * COLUMNS / width;
+                sums[cell] += brightness(image, pixels, type, x, y, width);
+                counts[cell]++;
+            }
+        }
+        long bits = 0;
+        for (int row = 0; row < ROWS; row++) {
+            for (int column = 0; column < COLUMNS - 1; column++) {
+                int cell = row * COLUMNS + column;
+                // compare averages without dividing, cross multiplying keeps it exact
+                boolean brighter = sums[cell] * counts[cell + 1] > sums[cell + 1] * counts[cell];
+                bits = (bits << 1) | (brighter ? 1 : 0);
+            }
+        }
+        return new PerceptualHash(bits);
+    }
+
+    private static int brightness(BufferedImage image, byte[] pixels, int type, int x, int y, int width) {
+        if (type == BufferedImage.TYPE_BYTE_GRAY) {
+            return pixels[y * width + x] & 0xFF;
+        }
+        int blue;
+        int green;
+        int red;
+        if (type == BufferedImage.TYPE_3BYTE_BGR) {
+            int offset = (y * width + x) * 3;
+            blue = pixels[offset] & 0xFF;
+            green = pixels[offset + 1] & 0xFF;
+            red = pixels[offset + 2] & 0xFF;
+        } else {
+            int rgb = image.getRGB(x, y);
+            red = (rgb >> 16) & 0xFF;
+            green = (rgb >> 8) & 0xFF;
+            blue = rgb & 0xFF;
+        }
+        return (299 * red + 587 * green + 114 * blue) / 1000;
+    }
+
+    @Override
+    public String toString() {
+        return "%016x".formatted(bits);
+    }
+}
@@ -0,0 +1,27 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+
+import java.time.Duration;
+
+/**
+ * @param frame         the frame as it is sent to the LLM
+ * @param width         0 when the frame could not be decoded, same for the height
+ * @param bytesSaved    original minus preprocessed JPEG size, negative when re-encoding made it bigger
+ * @param tokensSaved   estimated image tokens saved, by Gemini's tiling rule; 0 for frames that fit in one tile anyway,
+ *                      such as the camera's 640x480
+ * @param hash          perceptual hash of what the LLM sees, null when the frame could not be decoded
+ * @param imageFetch    how long it took to get the frame from the robot, filled in by whoever fetched it
+ * @param preprocessing decoding, preprocessing and hashing, without the time queued for a worker
+ */
+public record PreprocessedFrame(Frame frame, int width, int height, long bytesSaved, int tokensSaved, PerceptualHash hash,
+                                Duration imageFetch, Duration preprocessing) {
+
+    public PreprocessedFrame withImageFetch(Duration imageFetch) {
+        return new PreprocessedFrame(frame, width, height, bytesSaved, tokensSaved, hash, imageFetch, preprocessing);
+    }
+
+    public int imageTokens() {
+        return ImagePreprocessor.estimateImageTokens(width, height);
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * How frames are prepared before they are sent to the LLM.
+ * @param maxWidth          frames wider than this are scaled down, keeping the aspect ratio. Gemini bills any image up to
+ *                          768x768 as one tile, so below that scaling down saves upload bytes and time, not image tokens
+ * @param cropTop           fraction of the height cut from the top, same for the other crop sides; from 0 up to but not
+ *                          including 1, and opposite sides together below 1
+ * @param quality           JPEG quality of the re-encoded frame, 1 to 100
+ * @param normalizeContrast stretch the brightness range so that 1% of the pixels are black and 1% are white
+ * @param workers           size of the worker pool the preprocessing runs on
+ */
+@ConfigurationProperties("kale-kaj-driver.preprocessing")
+public record PreprocessingProperties(
+    @DefaultValue("false") boolean enabled,
+    @DefaultValue("640") int maxWidth,
+    @DefaultValue("0") double cropTop,
+    @DefaultValue("0") double cropBottom,
+    @DefaultValue("0") double cropLeft,
+    @DefaultValue("0") double cropRight,
+    @DefaultValue("false") boolean grayscale,
+    @DefaultValue("85") int quality,
+    @DefaultValue("false") boolean normalizeContrast,
+    @DefaultValue("2") int workers) {
+
+    // a crop that leaves nothing makes every frame fail, better to refuse it at startup
+    public PreprocessingProperties {
+        requireFraction("crop-top", cropTop);
+        requireFraction("crop-bottom", cropBottom);
+        requireFraction("crop-left", cropLeft);
+        requireFraction("crop-right", cropRight);
+        if (cropTop + cropBottom >= 1) {
+            throw new IllegalArgumentException("crop-top and crop-bottom together must leave part of the frame, got %s and %s"
+                .formatted(cropTop, cropBottom));
+        }
+        if (cropLeft + cropRight >= 1) {
+            throw new IllegalArgumentException("crop-left and crop-right together must leave part of the frame, got %s and %s"
+                .formatted(cropLeft, cropRight));
+        }
+    }
+
+    private static void requireFraction(String name, double value) {
+        if (!(value >= 0 && value < 1)) {
+            throw new IllegalArgumentException("%s must be at least 0 and below 1, got %s".formatted(name, value));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+/**
+ * Tells whether a frame shows the same scene as the one the previous step was based on,
+ * so the agent loop can skip the LLM call for a car that is blocked or whose move had no visible effect.
+ */
+@Slf4j
+@Component
+public class SceneChangeDetector {
+
+    private final SceneChangeProperties properties;
+    private final Counter checks;
+    private final Counter skips;
+
+    public SceneChangeDetector(SceneChangeProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.checks = Counter.builder("kale_kaj_driver.scene_change.checks")
+            .description("Frames compared with the previous step's frame")
+            .register(meterRegistry);
+        this.skips = Counter.builder("kale_kaj_driver.scene_change.skips")
+            .description("LLM calls skipped because the scene had not changed")
+            .register(meterRegistry);
+        Gauge.builder("kale_kaj_driver.scene_change.skip.rate", this, SceneChangeDetector::skipRate)
+            .register(meterRegistry);
+    }
+
+    public SceneChangeProperties properties() {
+        return properties;
+    }
+
+    /**
+     * @param previous         hash of the frame the previous step was based on, null on the first step
+     * @param consecutiveSkips how many steps in a row already took the fast path
+     * @return true when the LLM call can be skipped
+     */
+    public boolean unchanged(PerceptualHash previous, PerceptualHash current, int consecutiveSkips) {
+        if (!properties.enabled() || previous == null || current == null) {
+            return false;
+        }
+        checks.increment();
+        int distance = previous.distance(current);
+        if (distance > properties.threshold() || consecutiveSkips >= properties.maxConsecutiveSkips()) {
+            return false;
+        }
+        skips.increment();
+        log.debug("Scene unchanged, {} of 64 bits differ between {} and {}", distance, previous, current);
+        return true;
+    }
+
+    private double skipRate() {
+        double checked = checks.count();
+        return checked == 0 ? 0 : skips.count() / checked;
+    }
+}
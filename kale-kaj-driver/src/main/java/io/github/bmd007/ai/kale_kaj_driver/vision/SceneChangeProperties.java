@@ -0,0 +1,39 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.time.Duration;
+import java.util.List;
+
+/**
+ * @param threshold           frames whose perceptual hashes differ in at most this many of the 64 bits show the same scene
+ * @param whenUnchanged       what the agent loop does instead of asking the LLM about an unchanged scene
+ * @param recoveryActions     the manoeuvre of {@link UnchangedSceneAction#RECOVER}
+ * @param recaptureDelay      how long {@link UnchangedSceneAction#RECAPTURE} waits before looking again
+ * @param maxConsecutiveSkips after this many fast paths in a row the LLM is asked anyway
+ */
+@ConfigurationProperties("kale-kaj-driver.scene-change")
+public record SceneChangeProperties(
+    @DefaultValue("true") boolean enabled,
+    @DefaultValue("4") int threshold,
+    @DefaultValue("RECAPTURE") UnchangedSceneAction whenUnchanged,
+    @DefaultValue({"BACKWARD", "LEFT"}) List<String> recoveryActions,
+    @DefaultValue("500ms") Duration recaptureDelay,
+    @DefaultValue("3") int maxConsecutiveSkips) {
+
+    public enum UnchangedSceneAction {
+        /**
+         * Repeat the actions of the previous step.
+         */
+        REUSE_LAST_DECISION,
+        /**
+         * Run the recovery actions, for a car that is stuck.
+         */
+        RECOVER,
+        /**
+         * Do not move, take a new frame after the recapture delay.
+         */
+        RECAPTURE
+    }
+}
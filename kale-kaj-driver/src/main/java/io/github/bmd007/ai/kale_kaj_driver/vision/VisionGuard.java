@@ -0,0 +1,176 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import io.github.bmd007.ai.kale_kaj_driver.Frame;
+import io.github.bmd007.ai.kale_kaj_driver.RpiService;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.scheduler.Schedulers;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps an eye on the road while the car executes a plan the LLM made seconds ago.
+ * Every streamed frame is decoded heavily subsampled and checked for two things: edges on the floor right in front
+ * of the car, which veto the next FORWARD, and a sudden change from the previous frame, which vetoes the rest of the plan
+ * so the loop re-plans early. A frame takes a few milliseconds, frames arriving while one is checked are skipped.
+ */
+@Slf4j
+@Component
+public class VisionGuard {
+
+    private static final String OBSTACLE = "obstacle";
+    private static final String SCENE_CHANGE = "scene-change";
+
+    private final VisionGuardProperties properties;
+    private final MeterRegistry meterRegistry;
+    private final Timer duration;
+    private final ThreadLocal<ImageReader> readers = ThreadLocal.withInitial(() -> ImageIO.getImageReadersByFormatName("jpeg").next());
+
+    public VisionGuard(VisionGuardProperties properties, MeterRegistry meterRegistry) {
+        this.properties = properties;
+        this.meterRegistry = meterRegistry;
+        this.duration = Timer.builder("kale_kaj_driver.vision_guard.duration")
+            .description("Time to check one streamed frame")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+    }
+
+    /**
+     * Starts watching the frames, until the returned watch is disposed.
+     */
+    public Watch watch(Flux<Frame> frames) {
+        var watch = new Watch();
+        if (properties.enabled()) {
+            watch.subscription = frames
+                .onBackpressureLatest()
+                .publishOn(Schedulers.parallel(), 1)
+                .subscribe(watch::check, e -> log.debug("Vision guard lost the video stream: {}", e.getMessage()));
+        }
+        return watch;
+    }
+
+    /**
+     * What the guard saw in the frames of one plan. Frames are checked one at a time, the verdicts are read from the loop.
+     */
+    public final class Watch implements Disposable {
+
+        private Disposable subscription;
+        private int[] previous;
+        private volatile boolean obstacleAhead;
+        private volatile String sceneChanged;
+
+        private Watch() {
+        }
+
+        /**
+         * @return why the move must not be made, null when nothing speaks against it
+         */
+        public String veto(RpiService.MOVE_DIRECTION next) {
+            String reason = sceneChanged;
+            String kind = SCENE_CHANGE;
+            if (reason == null && next == RpiService.MOVE_DIRECTION.FORWARD && obstacleAhead) {
+                reason = "obstacle right ahead";
+                kind = OBSTACLE;
+            }
+            if (reason != null) {
+                log.info("Vision guard vetoed {}: {}", next, reason);
+                meterRegistry.counter("kale_kaj_driver.vision_guard.vetoes", "reason", kind).increment();
+            }
+            return reason;
+        }
+
+        private void check(Frame frame) {
+            long started = System.nanoTime();
+            try {
+                var gray = decode(frame.jpeg());
+                obstacleAhead = floorEdgeDensity(gray) > properties.obstacleEdgeDensity();
+                if (previous != null && previous.length == gray.pixels.length && sceneChanged == null) {
+                    double change = meanDifference(previous, gray.pixels);
+                    if (change > properties.suddenChange()) {
+                        sceneChanged = "scene changed suddenly, %.0f%% difference between frames".formatted(change * 100);
+                    }
+                }
+                previous = gray.pixels;
+            } catch (IOException | RuntimeException e) {
+                log.debug("Vision guard could not check frame {}: {}", frame.sequence(), e.getMessage());
+            } finally {
+                duration.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private double floorEdgeDensity(Gray gray) {
+            int top = (int) (gray.height * properties.floorTop());
+            int left = (int) (gray.width * properties.floorSide());
+            int right = gray.width - left;
+            int edges = 0;
+            int checked = 0;
+            for (int y = top; y < gray.height - 1; y++) {
+                for (int x = left; x < right - 1; x++) {
+                    int pixel = gray.pixels[y * gray.width + x];
+                    int gradient = Math.abs(gray.pixels[y * gray.width + x + 1] - pixel)
+                        + Math.abs(gray.pixels[(y + 1) * gray.width + x] - pixel);
+                    if (gradient > properties.edgeThreshold()) {
+                        edges++;
+                    }
+                    checked++;
+                }
+            }
+            return checked == 0 ? 0 : (double) edges / checked;
+        }
+
+        @Override
+        public void dispose() {
+            if (subscription != null) {
+                subscription.dispose();
+            }
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return subscription == null || subscription.isDisposed();
+        }
+    }
+
+    private record Gray(int width, int height, int[] pixels) {
+    }
+
+    private Gray decode(byte[] jpeg) throws IOException {
+        var reader = readers.get();
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(jpeg))) {
+            reader.setInput(input, true, true);
+            int step = Math.max(1, reader.getWidth(0) / properties.width());
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(step, step, 0, 0);
+            BufferedImage image = reader.read(0, param);
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            for (int i = 0; i < pixels.length; i++) {
+                int rgb = pixels[i];
+                pixels[i] = (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+            }
+            return new Gray(width, height, pixels);
+        } finally {
+            reader.reset();
+        }
+    }
+
+    private static double meanDifference(int[] previous, int[] current) {
+        long total = 0;
+        for (int i = 0; i < current.length; i++) {
+            total += Math.abs(current[i] - previous[i]);
+        }
+        return total / (255.0 * current.length);
+    }
+}
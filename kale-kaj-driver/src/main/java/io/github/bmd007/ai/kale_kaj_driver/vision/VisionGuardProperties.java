@@ -0,0 +1,25 @@
+package io.github.bmd007.ai.kale_kaj_driver.vision;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+/**
+ * How the vision guard judges the streamed frames while a plan runs.
+ * @param width               frames are decoded subsampled down to about this width, enough to see the floor ahead
+ * @param floorTop            the region right in front of the car starts this fraction of the height from the top
+ * @param floorSide           fraction of the width left out on each side of that region, the car only drives into the middle
+ * @param edgeThreshold       brightness step between neighbouring pixels, 0 to 255, that counts as an edge
+ * @param obstacleEdgeDensity a floor region with more than this fraction of edge pixels has something on it, FORWARD is vetoed
+ * @param suddenChange        mean brightness difference between consecutive frames, as a fraction of full range,
+ *                            above which the scene changed too much for the rest of the plan to still make sense
+ */
+@ConfigurationProperties("kale-kaj-driver.vision-guard")
+public record VisionGuardProperties(
+    @DefaultValue("true") boolean enabled,
+    @DefaultValue("80") int width,
+    @DefaultValue("0.6") double floorTop,
+    @DefaultValue("0.25") double floorSide,
+    @DefaultValue("40") int edgeThreshold,
+    @DefaultValue("0.3") double obstacleEdgeDensity,
+    @DefaultValue("0.2") double suddenChange) {
+}
@@ -1,17 +1,22 @@
 package io.github.bmd007.rpi;
 
+import io.github.bmd007.rpi.service.MotionLeaseWatchdog;
 import io.github.bmd007.rpi.service.MotorService;
 import io.github.bmd007.rpi.service.RpiCamStill;
 import io.github.bmd007.rpi.service.RpiCamVid;
 import io.github.bmd007.rpi.service.ServoService;
+import io.github.bmd007.rpi.service.TelemetryService;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.event.ApplicationReadyEvent;
 import org.springframework.context.event.EventListener;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.publisher.Sinks;
@@ -20,6 +25,7 @@ import reactor.core.scheduler.Schedulers;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 import static io.github.bmd007.rpi.service.MotorService.MovementCommand;
@@ -33,7 +39,11 @@ public class ActuatorResource {
         .multicast()
         .onBackpressureBuffer(4, false);
 
-    private static final AtomicReference<byte[]> LATEST_FRAME = new AtomicReference<>();
+    private static final AtomicReference<Frame> LATEST_FRAME = new AtomicReference<>();
+
+    private static final AtomicLong FRAME_SEQUENCE = new AtomicLong();
+
+    public static final String FRAME_SEQUENCE_HEADER = "X-Frame-Sequence";
 
     private static final RpiCamVid VIDEO_CAMERA = new RpiCamVid()
         .setDimensions(640, 480) // Lower resolution = faster processing
@@ -51,10 +61,20 @@ public class ActuatorResource {
 
     private final MotorService motorService;
     private final ServoService servoService;
+    private final TelemetryService telemetryService;
+    private final MotionLeaseWatchdog watchdog;
 
-    public ActuatorResource(MotorService motorService, ServoService servoService) {
+    public ActuatorResource(MotorService motorService,
+                            ServoService servoService,
+                            TelemetryService telemetryService,
+                            MotionLeaseWatchdog watchdog) {
         this.motorService = motorService;
         this.servoService = servoService;
+        this.telemetryService = telemetryService;
+        this.watchdog = watchdog;
+    }
+
+    private record Frame(long sequence, byte[] jpeg) {
     }
 
     @EventListener(ApplicationReadyEvent.class)
@@ -83,11 +103,14 @@ public class ActuatorResource {
                                     i++;
                                     inFrame = false;
                                     byte[] imageBytes = frameBuffer.toByteArray();
+                                    long sequence = FRAME_SEQUENCE.incrementAndGet();
 
                                     // Store the latest frame for capture-image endpoint
-                                    LATEST_FRAME.set(imageBytes);
+                                    LATEST_FRAME.set(new Frame(sequence, imageBytes));
+                                    telemetryService.publishFrame(sequence, imageBytes);
 
-                                    String header = "--frame\r\nContent-Type: image/jpeg\r\n\r\n";
+                                    String header = "--frame\r\nContent-Type: image/jpeg\r\nContent-Length: " + imageBytes.length
+                                        + "\r\n" + FRAME_SEQUENCE_HEADER + ": " + sequence + "\r\n\r\n";
 
                                     SINK.tryEmitNext(header.getBytes());
                                     SINK.tryEmitNext(imageBytes);
@@ -112,23 +135,47 @@ public class ActuatorResource {
     }
 
     @GetMapping(value = "v3/capture-image", produces = MediaType.IMAGE_JPEG_VALUE)
-    public Mono<byte[]> captureImage() {
+    public Mono<ResponseEntity<byte[]>> captureImage() {
         return Mono.defer(() -> {
-                byte[] frame = LATEST_FRAME.get();
+                Frame frame = LATEST_FRAME.get();
                 if (frame == null) {
                     return Mono.error(new IllegalStateException("No video frame available yet. Please wait for video stream to start."));
                 }
-                return Mono.just(frame);
+                return Mono.just(ResponseEntity.ok()
+                    .header(FRAME_SEQUENCE_HEADER, String.valueOf(frame.sequence()))
+                    .body(frame.jpeg()));
             })
             .timeout(Duration.ofSeconds(5))
             .subscribeOn(Schedulers.boundedElastic());
     }
 
     //todo add rate limited, one request per second
+    // with await the response is sent once the motors have stopped, so the caller can sequence on the actual motion
     @PostMapping("move")
-    public void move(@RequestParam String command) {
+    public Mono<ResponseEntity<MotorService.Motion>> move(@RequestParam String command,
+                                                         @RequestParam(required = false) Long leaseMs,
+                                                         @RequestParam(defaultValue = "false") boolean await) {
         var movement = MovementCommand.valueOf(command.trim().toUpperCase());
-        motorService.move(movement);
+        watchdog.renew(lease(leaseMs));
+        var motion = motorService.move(movement);
+        return await ? motion.map(ResponseEntity::ok) : Mono.just(ResponseEntity.ok().build());
+    }
+
+    // keeps the motion lease alive, without it the watchdog stops the motors once the lease runs out
+    @PostMapping("heartbeat")
+    public long heartbeat(@RequestParam(required = false) Long leaseMs) {
+        return watchdog.renew(lease(leaseMs)).toMillis();
+    }
+
+    // a lease of zero or less would already have run out, the watchdog would brake the move this very request started
+    private static Duration lease(Long leaseMs) {
+        if (leaseMs == null) {
+            return null;
+        }
+        if (leaseMs <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "leaseMs must be positive, was " + leaseMs);
+        }
+        return Duration.ofMillis(leaseMs);
     }
 
     //todo add rate limited, one request per second
@@ -7,6 +7,10 @@ import org.springframework.boot.WebApplicationType;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.reactive.handler.SimpleUrlHandlerMapping;
+
+import java.util.Map;
 
 @Configuration
 @SpringBootApplication
@@ -24,4 +28,10 @@ public class KaleKaj {
     public PCA9685 pca9685() throws InterruptedException {
         return new PCA9685(Pi4J.newAutoContext(), I2C_BUS, PCA9685_ADDR);
     }
+
+    @Bean
+    public HandlerMapping telemetryHandlerMapping(TelemetryWebSocketHandler telemetryWebSocketHandler) {
+        // order -1 so it is consulted before the annotated controllers
+        return new SimpleUrlHandlerMapping(Map.of("/v3/telemetry", telemetryWebSocketHandler), -1);
+    }
 }
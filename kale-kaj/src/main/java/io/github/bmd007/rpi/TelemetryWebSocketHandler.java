@@ -0,0 +1,56 @@
+package io.github.bmd007.rpi;
+
+import io.github.bmd007.rpi.service.TelemetryService;
+import io.github.bmd007.rpi.service.TelemetrySubscription;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.socket.CloseStatus;
+import org.springframework.web.reactive.socket.WebSocketHandler;
+import org.springframework.web.reactive.socket.WebSocketMessage;
+import org.springframework.web.reactive.socket.WebSocketSession;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/**
+ * Serves the multiplexed telemetry stream as binary WebSocket messages, see {@link io.github.bmd007.rpi.service.TelemetryMessage}.
+ * The initial subscription comes from the handshake query string, e.g. {@code /v3/telemetry?channels=FRAME,MOTOR&rates=FRAME:5}.
+ * Clients can change it later by sending a text message with the same syntax.
+ * An invalid handshake query closes the socket with status 1007, an invalid later message is answered with a text message
+ * starting with {@code error:} and the current subscription stays in place.
+ */
+@Component
+public class TelemetryWebSocketHandler implements WebSocketHandler {
+
+    private final TelemetryService telemetryService;
+
+    public TelemetryWebSocketHandler(TelemetryService telemetryService) {
+        this.telemetryService = telemetryService;
+    }
+
+    @Override
+    public Mono<Void> handle(WebSocketSession session) {
+        TelemetrySubscription initialSubscription;
+        try {
+            initialSubscription = TelemetrySubscription.parse(session.getHandshakeInfo().getUri().getRawQuery());
+        } catch (IllegalArgumentException e) {
+            return session.close(CloseStatus.BAD_DATA.withReason("Invalid subscription"));
+        }
+        Sinks.Many<WebSocketMessage> rejections = Sinks.many().unicast().onBackpressureBuffer();
+        var outbound = session.receive()
+            .filter(message -> message.getType() == WebSocketMessage.Type.TEXT)
+            .map(WebSocketMessage::getPayloadAsText)
+            .concatMap(text -> {
+                try {
+                    return Mono.just(TelemetrySubscription.parse(text));
+                } catch (IllegalArgumentException e) {
+                    // messages are received one at a time, so emitting here is never concurrent
+                    rejections.tryEmitNext(session.textMessage("error: " + e.getMessage()));
+                    return Mono.empty();
+                }
+            })
+            .startWith(initialSubscription)
+            .switchMap(telemetryService::stream)
+            .map(message -> session.binaryMessage(factory -> factory.wrap(message.encode())));
+        return session.send(Flux.merge(outbound, rejections.asFlux()));
+    }
+}
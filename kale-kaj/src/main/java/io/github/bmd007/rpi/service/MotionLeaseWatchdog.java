@@ -0,0 +1,108 @@
+package io.github.bmd007.rpi.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dead-man switch for the motors.
+ * Every motion command and heartbeat renews a lease, when the lease expires while the motors are running
+ * the watchdog brakes all wheels. The time between lease expiry and the brake is recorded as
+ * {@code kale_kaj.watchdog.stop.latency}, the worst case seen so far as {@code kale_kaj.watchdog.stop.latency.worst}.
+ */
+@Service
+public class MotionLeaseWatchdog {
+
+    private final MotorService motorService;
+    private final Duration defaultLease;
+    private final Duration maxLease;
+    private final ScheduledExecutorService scheduler;
+    private final Timer stopLatency;
+    private final Counter trips;
+    private final AtomicLong worstStopLatencyNanos = new AtomicLong();
+
+    private volatile long leaseExpiresAtNanos = System.nanoTime();
+
+    public MotionLeaseWatchdog(MotorService motorService,
+                               MeterRegistry meterRegistry,
+                               @Value("${kale-kaj.watchdog.tick:10ms}") Duration tick,
+                               @Value("${kale-kaj.watchdog.default-lease:750ms}") Duration defaultLease,
+                               @Value("${kale-kaj.watchdog.max-lease:5s}") Duration maxLease) {
+        this.motorService = motorService;
+        this.defaultLease = defaultLease;
+        this.maxLease = maxLease;
+        this.stopLatency = Timer.builder("kale_kaj.watchdog.stop.latency")
+            .description("Time between lease expiry and motors being braked")
+            .publishPercentiles(0.5, 0.99)
+            .register(meterRegistry);
+        this.trips = Counter.builder("kale_kaj.watchdog.trips")
+            .description("Number of times the watchdog had to stop the motors")
+            .register(meterRegistry);
+        Gauge.builder("kale_kaj.watchdog.stop.latency.worst", worstStopLatencyNanos, nanos -> nanos.get() / 1_000_000.0)
+            .description("Worst observed stop latency in milliseconds")
+            .baseUnit("milliseconds")
+            .register(meterRegistry);
+
+        // a dedicated thread, so a busy boundedElastic pool can never delay an emergency stop
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "motor-watchdog");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MAX_PRIORITY);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::check, tick.toNanos(), tick.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Extends the lease from now on.
+     * @param lease requested lease, null means the default lease, capped at the configured maximum
+     * @return the granted lease
+     * @throws IllegalArgumentException for a lease of zero or less, it would expire before the motion it covers
+     */
+    public Duration renew(Duration lease) {
+        if (lease != null && !lease.isPositive()) {
+            throw new IllegalArgumentException("Lease must be positive, was " + lease);
+        }
+        Duration granted = lease == null ? defaultLease : lease;
+        if (granted.compareTo(maxLease) > 0) {
+            granted = maxLease;
+        }
+        leaseExpiresAtNanos = System.nanoTime() + granted.toNanos();
+        return granted;
+    }
+
+    private void check() {
+        try {
+            long expiresAt = leaseExpiresAtNanos;
+            if (!motorService.isMoving() || System.nanoTime() - expiresAt < 0) {
+                return;
+            }
+            if (motorService.stop("WATCHDOG_STOP")) {
+                long latency = System.nanoTime() - expiresAt;
+                stopLatency.record(latency, TimeUnit.NANOSECONDS);
+                worstStopLatencyNanos.accumulateAndGet(latency, Math::max);
+                trips.increment();
+                System.err.println("Motion lease expired, motors stopped by watchdog after " + latency / 1_000_000.0 + " ms");
+            }
+        } catch (Exception e) {
+            // an exception would cancel the periodic task and disarm the watchdog
+            System.err.println("Watchdog check failed: " + e.getMessage());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+        motorService.stop("SHUTDOWN");
+    }
+}
@@ -4,29 +4,121 @@ import org.springframework.stereotype.Service;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
+
 @Service
 public class MotorService {
 
     private static final int MAX_DUTY = 4095;
+    private static final Duration MOTION_DURATION = Duration.ofMillis(500);
     private final PCA9685 pca9685;
+    private final TelemetryService telemetryService;
+
+    // null while the motors are idle
+    private ActiveMotion activeMotion;
 
-    public MotorService(PCA9685 pca9685) {
+    public MotorService(PCA9685 pca9685, TelemetryService telemetryService) {
         this.pca9685 = pca9685;
+        this.telemetryService = telemetryService;
+    }
+
+    /**
+     * How a motion ended, the acknowledgement a caller can sequence its next move or frame on.
+     * @param stoppedBy STOP when the motion ran its course, SUPERSEDED when a newer move took over the motors,
+     *                  otherwise the reason of whatever stopped the motors first, e.g. WATCHDOG_STOP
+     * @param millis    from starting the motors to braking them or handing them over
+     */
+    public record Motion(MovementCommand command, String stoppedBy, long millis) {
+    }
+
+    /**
+     * One motion owns the motors from its start until it is stopped, a later move only ever brakes its own motion.
+     * Its fields are guarded by the service's lock.
+     */
+    private static final class ActiveMotion {
+        private final MovementCommand command;
+        private final long startedAtNanos = System.nanoTime();
+        private String stoppedBy;
+        private long stoppedAtNanos;
+
+        private ActiveMotion(MovementCommand command) {
+            this.command = command;
+        }
+
+        private Motion ended(String reason) {
+            stoppedBy = reason;
+            stoppedAtNanos = System.nanoTime();
+            return acknowledgement();
+        }
+
+        private Motion acknowledgement() {
+            return new Motion(command, stoppedBy, Duration.ofNanos(stoppedAtNanos - startedAtNanos).toMillis());
+        }
     }
 
-    public void move(MovementCommand command) {
+    /**
+     * Starts the motion right away, whether or not anyone subscribes.
+     * A move sent while another is running takes the motors over, the earlier one then reports SUPERSEDED.
+     * @return emits once the motors have stopped
+     */
+    public Mono<Motion> move(MovementCommand command) {
         int[] duties = getDutiesForCommand(command);
-        Mono.fromRunnable(() -> {
-                setMotorModel(duties[0], duties[1], duties[2], duties[3]);
+        Mono<Motion> motion = Mono.fromCallable(() -> {
+                ActiveMotion started = start(command, duties);
                 try {
-                    Thread.sleep(500);
+                    Thread.sleep(MOTION_DURATION.toMillis());
                 } catch (InterruptedException e) {
                     throw new RuntimeException(e);
                 }
-                setMotorModel(0, 0, 0, 0);
+                return finish(started);
             })
             .subscribeOn(Schedulers.boundedElastic())
-            .subscribe();
+            .cache();
+        motion.subscribe(ignored -> {
+        }, e -> System.err.println("Motion " + command + " failed: " + e.getMessage()));
+        return motion;
+    }
+
+    public synchronized boolean isMoving() {
+        return activeMotion != null;
+    }
+
+    /**
+     * Brakes all four wheels right away, regardless of any motion still scheduled.
+     * @param reason reported as the state of the STOP telemetry event and as how the running motion ended
+     * @return whether the motors were running when called
+     */
+    public synchronized boolean stop(String reason) {
+        ActiveMotion stopped = activeMotion;
+        setMotorModel(0, 0, 0, 0);
+        activeMotion = null;
+        if (stopped != null) {
+            stopped.ended(reason);
+            telemetryService.publishMotor(stopped.command.name(), reason);
+        }
+        return stopped != null;
+    }
+
+    private synchronized ActiveMotion start(MovementCommand command, int[] duties) {
+        if (activeMotion != null) {
+            activeMotion.ended("SUPERSEDED");
+            telemetryService.publishMotor(activeMotion.command.name(), "SUPERSEDED");
+        }
+        setMotorModel(duties[0], duties[1], duties[2], duties[3]);
+        activeMotion = new ActiveMotion(command);
+        telemetryService.publishMotor(command.name(), "START");
+        return activeMotion;
+    }
+
+    // brakes only when the motors still belong to this motion, otherwise it was already stopped or taken over
+    private synchronized Motion finish(ActiveMotion motion) {
+        if (activeMotion != motion) {
+            return motion.acknowledgement();
+        }
+        setMotorModel(0, 0, 0, 0);
+        activeMotion = null;
+        telemetryService.publishMotor(motion.command.name(), "STOP");
+        return motion.ended("STOP");
     }
 
     private int[] getDutiesForCommand(MovementCommand command) {
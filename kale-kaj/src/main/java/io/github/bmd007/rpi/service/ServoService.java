@@ -10,9 +10,11 @@ public class ServoService {
     private static final int INITIAL_PULSE = 1500;
     private final Map<String, Integer> pwmChannelMap;
     private final PCA9685 pca9685;
+    private final TelemetryService telemetryService;
 
-    public ServoService(PCA9685 pca9685) {
+    public ServoService(PCA9685 pca9685, TelemetryService telemetryService) {
         this.pca9685 = pca9685;
+        this.telemetryService = telemetryService;
         this.pwmChannelMap = new HashMap<>();
         pwmChannelMap.put("0", 8);
         pwmChannelMap.put("1", 9);
@@ -41,6 +43,7 @@ public class ServoService {
             pulse = 500 + (int) ((angle + error) / 0.09);
         }
         setServoPulse(pwmChannelMap.get(channel), pulse);
+        telemetryService.publishServo(channel, angle);
     }
 
     private void setServoPulse(int channel, int pulse) {
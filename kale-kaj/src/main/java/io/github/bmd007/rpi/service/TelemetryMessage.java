@@ -0,0 +1,55 @@
+package io.github.bmd007.rpi.service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * One tagged message of the multiplexed telemetry stream.
+ * <p>
+ * Wire format (big endian): 1 byte channel tag, 8 bytes per-channel sequence number,
+ * 8 bytes epoch millis timestamp, followed by the payload.
+ * Frame payloads are raw JPEG bytes, all other payloads are small UTF-8 JSON documents.
+ */
+public record TelemetryMessage(Channel channel, long sequence, long timestamp, byte[] payload) {
+
+    public static final int HEADER_SIZE = 1 + Long.BYTES + Long.BYTES;
+
+    public static TelemetryMessage json(Channel channel, long sequence, String json) {
+        return new TelemetryMessage(channel, sequence, System.currentTimeMillis(), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public ByteBuffer encode() {
+        return ByteBuffer.allocate(HEADER_SIZE + payload.length)
+            .put(channel.tag())
+            .putLong(sequence)
+            .putLong(timestamp)
+            .put(payload)
+            .flip();
+    }
+
+    public enum Channel {
+        FRAME((byte) 1),
+        MOTOR((byte) 2),
+        SERVO((byte) 3),
+        //reserved for ultrasonic, infrared and photoresistor readings
+        SENSOR((byte) 4);
+
+        private final byte tag;
+
+        Channel(byte tag) {
+            this.tag = tag;
+        }
+
+        public byte tag() {
+            return tag;
+        }
+
+        public static Channel parse(String name) {
+            return Arrays.stream(values())
+                .filter(channel -> channel.name().equalsIgnoreCase(name.trim()))
+                .findFirst()
+                .orElseThrow(() -> new IllegalArgumentException("Invalid channel: " + name + ". Valid channels are " + Arrays.toString(values())));
+        }
+    }
+}
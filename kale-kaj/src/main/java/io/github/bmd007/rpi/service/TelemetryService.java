@@ -0,0 +1,83 @@
+package io.github.bmd007.rpi.service;
+
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.github.bmd007.rpi.service.TelemetryMessage.Channel;
+
+/**
+ * Hub of the multiplexed telemetry stream.
+ * Camera, motors and servos publish here, each client subscribes to the channels it cares about.
+ */
+@Service
+public class TelemetryService {
+
+    private static final int CLIENT_BUFFER_SIZE = 64;
+
+    // slow clients miss messages instead of slowing down the camera loop
+    private final Sinks.Many<TelemetryMessage> sink = Sinks.many()
+        .multicast()
+        .directBestEffort();
+
+    private final Map<Channel, AtomicLong> sequences = new EnumMap<>(Channel.class);
+
+    public TelemetryService() {
+        for (Channel channel : Channel.values()) {
+            sequences.put(channel, new AtomicLong());
+        }
+    }
+
+    public void publishFrame(long frameSequence, byte[] jpeg) {
+        emit(new TelemetryMessage(Channel.FRAME, frameSequence, System.currentTimeMillis(), jpeg));
+    }
+
+    public void publishMotor(String command, String state) {
+        emit(TelemetryMessage.json(Channel.MOTOR, nextSequence(Channel.MOTOR),
+            "{\"command\":\"%s\",\"state\":\"%s\"}".formatted(command, state)));
+    }
+
+    public void publishServo(String channel, int angle) {
+        emit(TelemetryMessage.json(Channel.SERVO, nextSequence(Channel.SERVO),
+            "{\"channel\":\"%s\",\"angle\":%d}".formatted(channel, angle)));
+    }
+
+    public Flux<TelemetryMessage> stream(TelemetrySubscription subscription) {
+        return Flux.defer(() -> {
+            Map<Channel, Long> lastSent = new EnumMap<>(Channel.class);
+            return sink.asFlux()
+                .filter(message -> subscription.channels().contains(message.channel()))
+                .filter(message -> withinRate(message, subscription.minIntervals(), lastSent));
+        }).onBackpressureBuffer(CLIENT_BUFFER_SIZE, dropped -> {
+        }, BufferOverflowStrategy.DROP_OLDEST);
+    }
+
+    private static boolean withinRate(TelemetryMessage message, Map<Channel, Duration> minIntervals, Map<Channel, Long> lastSent) {
+        Duration minInterval = minIntervals.get(message.channel());
+        if (minInterval == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        Long last = lastSent.get(message.channel());
+        if (last != null && now - last < minInterval.toNanos()) {
+            return false;
+        }
+        lastSent.put(message.channel(), now);
+        return true;
+    }
+
+    private long nextSequence(Channel channel) {
+        return sequences.get(channel).incrementAndGet();
+    }
+
+    // camera, motor and servo threads publish concurrently, the sink needs serialized emissions
+    private synchronized void emit(TelemetryMessage message) {
+        sink.tryEmitNext(message);
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.bmd007.rpi.service;
+
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.util.UriComponentsBuilder;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static io.github.bmd007.rpi.service.TelemetryMessage.Channel;
+
+/**
+ * Which telemetry channels a client wants and how often it wants them.
+ * Parsed from a query string such as {@code channels=FRAME,MOTOR&rates=FRAME:5,SERVO:10},
+ * where rates are the maximum number of messages per second for that channel.
+ */
+public record TelemetrySubscription(Set<Channel> channels, Map<Channel, Duration> minIntervals) {
+
+    public static final TelemetrySubscription ALL = new TelemetrySubscription(EnumSet.allOf(Channel.class), Map.of());
+
+    public static TelemetrySubscription parse(String query) {
+        if (query == null || query.isBlank()) {
+            return ALL;
+        }
+        return parse(UriComponentsBuilder.newInstance().query(query.trim()).build().getQueryParams());
+    }
+
+    public static TelemetrySubscription parse(MultiValueMap<String, String> params) {
+        String channels = params.getFirst("channels");
+        Set<Channel> subscribed = channels == null || channels.isBlank()
+            ? EnumSet.allOf(Channel.class)
+            : Arrays.stream(channels.split(","))
+            .map(Channel::parse)
+            .collect(Collectors.toCollection(() -> EnumSet.noneOf(Channel.class)));
+
+        Map<Channel, Duration> minIntervals = new EnumMap<>(Channel.class);
+        String rates = params.getFirst("rates");
+        if (rates != null && !rates.isBlank()) {
+            for (String rate : rates.split(",")) {
+                String[] parts = rate.split(":");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid rate: " + rate + ". Expected CHANNEL:messagesPerSecond");
+                }
+                double perSecond = Double.parseDouble(parts[1].trim());
+                if (perSecond <= 0) {
+                    throw new IllegalArgumentException("Rate must be positive: " + rate);
+                }
+                minIntervals.put(Channel.parse(parts[0]), Duration.ofNanos((long) (1_000_000_000L / perSecond)));
+            }
+        }
+        return new TelemetrySubscription(subscribed, minIntervals);
+    }
+}